@@ -0,0 +1,297 @@
+package nl.infcomtec.jllama;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Spreads context-free requests over all configured Ollama servers
+ * ({@link OllamaConfig#ollamas}) that have the requested model.
+ *
+ * Unlike {@link OllamaClient} this is not bound to one endpoint; it picks one
+ * per request, using the load figures in {@link EndpointStats}. As there is
+ * no conversation, any endpoint with the model will give an equivalent
+ * answer.
+ *
+ * @author walter
+ */
+public class BalancedClient {
+
+    /**
+     * How to pick an endpoint.
+     */
+    public enum Strategy {
+        /**
+         * The endpoint with the fewest requests in flight.
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * Of two random endpoints, the one with the fewest requests in flight.
+         * Nearly as good as the above but avoids herding when several clients
+         * see the same numbers.
+         */
+        POWER_OF_TWO,
+        /**
+         * The endpoint with the lowest moving average latency times queue
+         * length; favours faster machines.
+         */
+        LATENCY_EWMA
+    }
+
+    private final Strategy strategy;
+    private double hedgePercentile;
+    private final TreeMap<String, OllamaClient> clients = new TreeMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param strategy How to pick an endpoint.
+     */
+    public BalancedClient(Strategy strategy) {
+        this.strategy = strategy;
+        if (null != Ollama.config) {
+            hedgePercentile = Ollama.config.effectiveHedgePercentile();
+        }
+    }
+
+    /**
+     * Hedge context-free {@link #direct(Request)} calls, see
+     * {@link Hedging}; the picked endpoint is the primary.
+     *
+     * @param percentile For instance 0.95; 0 turns hedging off.
+     */
+    public void setHedging(double percentile) {
+        this.hedgePercentile = percentile;
+    }
+
+    /**
+     * Find the endpoints that have a model and are not known to be down.
+     *
+     * @param model The model name.
+     * @return The endpoints, possibly empty.
+     */
+    public List<String> endpointsFor(String model) {
+        List<String> ret = new ArrayList<>();
+        for (String ep : Ollama.endpointsFor(model)) {
+            if (CircuitBreaker.of(ep).isAvailable()) {
+                ret.add(ep);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Pick an endpoint for a request.
+     *
+     * @param model The model the request is for.
+     * @return The endpoint to send it to.
+     * @throws IOException If no endpoint that is up has the model.
+     */
+    public String pick(String model) throws IOException {
+        return pick(endpointsFor(model), model);
+    }
+
+    /**
+     * Pick one of the given endpoints.
+     *
+     * @param candidates Endpoints that have the model.
+     * @param model For the error message.
+     * @return The endpoint to send it to.
+     * @throws IOException If there are no candidates.
+     */
+    String pick(List<String> candidates, String model) throws IOException {
+        if (candidates.isEmpty()) {
+            throw new IOException("No endpoint that is up has model " + model);
+        }
+        if (1 == candidates.size()) {
+            return candidates.get(0);
+        }
+        switch (strategy) {
+            case POWER_OF_TWO: {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                int a = rnd.nextInt(candidates.size());
+                int b = rnd.nextInt(candidates.size() - 1);
+                if (b >= a) {
+                    b++;
+                }
+                String ea = candidates.get(a);
+                String eb = candidates.get(b);
+                return EndpointStats.of(ea).getOutstanding() <= EndpointStats.of(eb).getOutstanding() ? ea : eb;
+            }
+            case LATENCY_EWMA: {
+                String best = null;
+                double bestCost = Double.MAX_VALUE;
+                for (String ep : candidates) {
+                    double cost = EndpointStats.of(ep).getCost();
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        best = ep;
+                    }
+                }
+                return best;
+            }
+            default: {
+                String best = null;
+                int bestOut = Integer.MAX_VALUE;
+                for (String ep : candidates) {
+                    int out = EndpointStats.of(ep).getOutstanding();
+                    if (out < bestOut) {
+                        bestOut = out;
+                        best = ep;
+                    }
+                }
+                return best;
+            }
+        }
+    }
+
+    /**
+     * Get the client for an endpoint.
+     *
+     * @param endPoint The endpoint.
+     * @return A client that does not touch the configuration and does not
+     * hedge; that is up to this class.
+     */
+    OllamaClient getClient(String endPoint) {
+        synchronized (clients) {
+            OllamaClient ret = clients.get(endPoint);
+            if (null == ret) {
+                ret = new OllamaClient(endPoint, false);
+                ret.setHedging(0);
+                clients.put(endPoint, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Send a request, without streaming, to the best endpoint for its model.
+     * If that endpoint cannot be reached the next best one is tried; a
+     * request that did reach a server is not sent again.
+     *
+     * @param rq The request, should not have a context.
+     * @return The response.
+     * @throws Exception If no endpoint has the model or the request fails.
+     */
+    public Response direct(Request rq) throws Exception {
+        List<String> candidates = endpointsFor(rq.model);
+        if (hedgePercentile > 0 && Hedging.isContextFree(rq)) {
+            return Hedging.direct(pick(candidates, rq.model), rq, hedgePercentile);
+        }
+        while (true) {
+            EndpointStats stats = EndpointStats.of(pick(candidates, rq.model));
+            long start = stats.begin();
+            boolean ok = false;
+            try {
+                Response ret = getClient(stats.endPoint).direct(rq);
+                ok = true;
+                return ret;
+            } catch (IOException ex) {
+                if (!notSent(ex) || candidates.size() < 2) {
+                    throw ex;
+                }
+                candidates.remove(stats.endPoint);
+            } finally {
+                stats.end(start, ok);
+            }
+        }
+    }
+
+    /**
+     * Send a request, without streaming, to the best endpoint for its model.
+     *
+     * @param modelName The name of the model to use.
+     * @param system The system prompt.
+     * @param prompt The user prompt.
+     * @return The response.
+     * @throws Exception If no endpoint has the model or the request fails.
+     */
+    public Response direct(String modelName, String system, String prompt) throws Exception {
+        return direct(request(modelName, system, prompt));
+    }
+
+    /**
+     * Like {@link #direct(Request)} but without blocking the calling thread.
+     *
+     * @param rq The request, should not have a context.
+     * @return Completes with the response.
+     */
+    public CompletableFuture<Response> directAsync(Request rq) {
+        return directAsync(rq, endpointsFor(rq.model));
+    }
+
+    private CompletableFuture<Response> directAsync(final Request rq, final List<String> candidates) {
+        final EndpointStats stats;
+        try {
+            stats = EndpointStats.of(pick(candidates, rq.model));
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        final long start = stats.begin();
+        return getClient(stats.endPoint).directAsync(rq).handle(new BiFunction<Response, Throwable, CompletableFuture<Response>>() {
+            @Override
+            public CompletableFuture<Response> apply(Response resp, Throwable t) {
+                stats.end(start, null == t);
+                if (null == t) {
+                    return CompletableFuture.completedFuture(resp);
+                }
+                Throwable cause = t instanceof CompletionException && null != t.getCause() ? t.getCause() : t;
+                if (notSent(cause) && candidates.size() > 1) {
+                    candidates.remove(stats.endPoint);
+                    return directAsync(rq, candidates);
+                }
+                return CompletableFuture.failedFuture(cause);
+            }
+        }).thenCompose(new Function<CompletableFuture<Response>, CompletableFuture<Response>>() {
+            @Override
+            public CompletableFuture<Response> apply(CompletableFuture<Response> f) {
+                return f;
+            }
+        });
+    }
+
+    /**
+     * Like {@link #direct(String, String, String)} but without blocking the
+     * calling thread.
+     *
+     * @param modelName The name of the model to use.
+     * @param system The system prompt.
+     * @param prompt The user prompt.
+     * @return Completes with the response.
+     */
+    public CompletableFuture<Response> directAsync(String modelName, String system, String prompt) {
+        return directAsync(request(modelName, system, prompt));
+    }
+
+    /**
+     * Did a request fail without reaching the server, so it is safe to send
+     * it elsewhere?
+     *
+     * @param t What went wrong.
+     * @return True if the endpoint is down or refused the connection.
+     */
+    static boolean notSent(Throwable t) {
+        return t instanceof CircuitBreaker.OpenException || t instanceof ConnectException
+                || t instanceof HttpConnectTimeoutException;
+    }
+
+    /**
+     * Build a context-free request.
+     */
+    static Request request(String modelName, String system, String prompt) {
+        Request rq = new Request();
+        rq.model = modelName;
+        rq.prompt = prompt;
+        rq.stream = false;
+        rq.system = system;
+        return rq;
+    }
+}
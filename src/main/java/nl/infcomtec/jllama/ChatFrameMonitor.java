@@ -52,7 +52,7 @@ public class ChatFrameMonitor implements Monitor {
     @Override
     public void requested(String request) {
         try {
-            Request val = Ollama.getMapper().readValue(request, Request.class);
+            Request val = OllamaJson.REQUEST.readValue(request);
             synchronized (stats) {
                 Stats st = stats.get(val.model);
                 if (null == st) {
@@ -79,7 +79,7 @@ public class ChatFrameMonitor implements Monitor {
     @Override
     public void responded(String response) {
         try {
-            Response val = Ollama.getMapper().readValue(response, Response.class);
+            Response val = OllamaJson.RESPONSE.readValue(response);
             synchronized (stats) {
                 Stats st = stats.get(val.model);
                 if (null == st) {
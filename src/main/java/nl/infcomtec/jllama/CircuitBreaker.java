@@ -0,0 +1,176 @@
+package nl.infcomtec.jllama;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuit breaker for one Ollama endpoint.
+ *
+ * <dl>
+ * <dt>CLOSED</dt><dd>Normal operation. After a number of consecutive failures
+ * the breaker opens.</dd>
+ * <dt>OPEN</dt><dd>The endpoint is considered down, requests fail at once
+ * (or are sent elsewhere). After a while the breaker goes half-open.</dd>
+ * <dt>HALF_OPEN</dt><dd>One trial request is let through; success closes the
+ * breaker, failure opens it again.</dd>
+ * </dl>
+ * The {@link HealthChecker} also feeds the breakers, so an endpoint that comes
+ * back is closed again without waiting for a trial request.
+ *
+ * @author walter
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states of the breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Consecutive failures that open the breaker.
+     */
+    public static final int FAILURE_THRESHOLD = 3;
+    /**
+     * How long the breaker stays open before a trial, in milliseconds.
+     */
+    public static final long OPEN_MILLIS = 10000;
+    private static final ConcurrentHashMap<String, CircuitBreaker> all = new ConcurrentHashMap<>();
+    public final String endPoint;
+    private State state = State.CLOSED;
+    private int failures;
+    /**
+     * When OPEN: until when. When HALF_OPEN: when the trial expires.
+     */
+    private long until;
+
+    private CircuitBreaker(String endPoint) {
+        this.endPoint = endPoint;
+    }
+
+    /**
+     * Get the breaker of an endpoint.
+     *
+     * @param endPoint The endpoint.
+     * @return The (shared) breaker, created on first use.
+     */
+    public static CircuitBreaker of(String endPoint) {
+        CircuitBreaker ret = all.get(endPoint);
+        if (null == ret) {
+            all.putIfAbsent(endPoint, new CircuitBreaker(endPoint));
+            ret = all.get(endPoint);
+        }
+        return ret;
+    }
+
+    /**
+     * Check, without side effects, if a request might be let through.
+     *
+     * @return false if the endpoint is known to be down.
+     */
+    public synchronized boolean isAvailable() {
+        return State.CLOSED == state || System.currentTimeMillis() >= until;
+    }
+
+    /**
+     * Ask permission to send a request. When half-open only one caller at a
+     * time gets a yes, the trial.
+     *
+     * @return true if the request may be sent.
+     */
+    public synchronized boolean allowRequest() {
+        long now = System.currentTimeMillis();
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+            case HALF_OPEN:
+                // an expired trial that never reported back counts as no trial
+                if (now >= until) {
+                    state = State.HALF_OPEN;
+                    until = now + OPEN_MILLIS;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Throw if no request may be sent, see {@link #allowRequest()}.
+     *
+     * @throws OpenException If the endpoint is known to be down.
+     */
+    public void check() throws OpenException {
+        if (!allowRequest()) {
+            throw new OpenException(endPoint);
+        }
+    }
+
+    /**
+     * Report the outcome of a request.
+     *
+     * @param t Null on success, else what went wrong. Only failures that say
+     * something about the server count: a 4xx status (like an unknown model)
+     * is the request's fault and counts as a success.
+     */
+    public void report(Throwable t) {
+        if (null == t || t instanceof HttpStatusException && !((HttpStatusException) t).isServerError()) {
+            onSuccess();
+        } else {
+            onFailure();
+        }
+    }
+
+    /**
+     * Report a successful request or probe.
+     */
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * Report a failed request.
+     */
+    public synchronized void onFailure() {
+        failures++;
+        if (State.HALF_OPEN == state || failures >= FAILURE_THRESHOLD) {
+            trip();
+        }
+    }
+
+    /**
+     * Open the breaker now, for instance because a health probe failed.
+     */
+    public synchronized void trip() {
+        state = State.OPEN;
+        until = System.currentTimeMillis() + OPEN_MILLIS;
+    }
+
+    /**
+     * @return The current state.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Thrown instead of sending a request to an endpoint that is down.
+     */
+    public static class OpenException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public OpenException(String endPoint) {
+            super("Endpoint " + endPoint + " is down (circuit open)");
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{" + endPoint + ", state=" + state + ", failures=" + failures + '}';
+    }
+}
@@ -30,7 +30,7 @@ public class DallEClient {
     }
 
     public BufferedImage getImage(String prompt) throws Exception {
-        ObjectMapper mapper = Ollama.getMapper();
+        ObjectMapper mapper = OllamaJson.MAPPER;
 
         DallERequest rq = new DallERequest();
         rq.prompt = prompt;
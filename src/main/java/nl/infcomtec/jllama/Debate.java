@@ -75,7 +75,7 @@ public class Debate {
      * @throws IOException If there is an error reading the JSON file.
      */
     public static Debate fromFile(File json) throws IOException {
-        return Ollama.getMapper().readValue(json, Debate.class);
+        return OllamaJson.MAPPER.readValue(json, Debate.class);
     }
 
     /**
@@ -131,7 +131,7 @@ public class Debate {
      * @throws IOException If there is an error writing to the JSON file.
      */
     public void toFile(File json) throws IOException {
-        Ollama.getMapper().writeValue(json, this);
+        OllamaJson.PRETTY.writeValue(json, this);
     }
 
     /**
@@ -0,0 +1,327 @@
+package nl.infcomtec.jllama;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent, content-addressed cache of embedding vectors, keyed by the
+ * digest of the model and the SHA-256 of the prompt.
+ *
+ * The vectors live in one append-only binary file:
+ * <pre>
+ * header:  int magic, int version
+ * record:  byte[32] key, int dim, float[dim] vector (big endian)
+ * </pre>
+ * On open the file is scanned once to build the key to offset index and a
+ * partly written last record (a crash while appending) is cut off. Lookups
+ * read from a read-only memory mapping of the file (the first 2 GB, records
+ * beyond that are read with the channel); the most recently used vectors are
+ * also kept on the heap.
+ *
+ * Vectors are stored as float32, the precision the models produce.
+ *
+ * @author walter
+ */
+public class EmbeddingCache {
+
+    /**
+     * Default location of the cache file.
+     */
+    public static final File CACHE_FILE = new File(Ollama.WORK_DIR, "embeddings.bin");
+    /**
+     * Default number of vectors kept on the heap.
+     */
+    public static final int HOT_SET = 4096;
+    private static final int MAGIC = 0x4A4C4543; // "JLEC"
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final int KEY = 32;
+    /**
+     * Records that may not fit in a mapping are read with the channel.
+     */
+    private static final int MAX_RECORD = 1 << 20;
+    private static EmbeddingCache defaultCache;
+    private static boolean defaultSet;
+    private final File file;
+    private final int hotSet;
+    private final HashMap<ByteBuffer, Long> index = new HashMap<>();
+    private final LinkedHashMap<ByteBuffer, float[]> hot;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private volatile MappedByteBuffer map;
+    private long end;
+    private final AtomicLong hotHits = new AtomicLong();
+    private final AtomicLong fileHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Open (or create) a cache file.
+     *
+     * @param file The cache file.
+     * @param hotSet Number of vectors to keep on the heap.
+     * @throws IOException If the file cannot be opened or is not a cache.
+     */
+    public EmbeddingCache(File file, final int hotSet) throws IOException {
+        this.file = file;
+        this.hotSet = hotSet;
+        this.hot = new LinkedHashMap<ByteBuffer, float[]>(256, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, float[]> eldest) {
+                return size() > hotSet;
+            }
+        };
+        file.getParentFile().mkdirs();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        if (0 == channel.size()) {
+            ByteBuffer hdr = ByteBuffer.allocate(HEADER);
+            hdr.putInt(MAGIC).putInt(VERSION).flip();
+            channel.write(hdr, 0);
+        }
+        scan();
+    }
+
+    /**
+     * Get the cache used by {@link OllamaEmbeddings}, opened on first use.
+     *
+     * @return The default cache, or null if it is turned off or cannot be
+     * opened.
+     */
+    public static synchronized EmbeddingCache getDefault() {
+        if (!defaultSet) {
+            defaultSet = true;
+            OllamaConfig cfg = null == Ollama.config ? new OllamaConfig() : Ollama.config;
+            if (cfg.effectiveEmbeddingCache() > 0) {
+                try {
+                    defaultCache = new EmbeddingCache(CACHE_FILE, cfg.effectiveEmbeddingCache());
+                } catch (IOException ex) {
+                    Logger.getLogger(EmbeddingCache.class.getName()).log(Level.WARNING, "Embedding cache disabled", ex);
+                }
+            }
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Replace the cache used by {@link OllamaEmbeddings}.
+     *
+     * @param cache The new default cache, null for none.
+     */
+    public static synchronized void setDefault(EmbeddingCache cache) {
+        defaultSet = true;
+        defaultCache = cache;
+    }
+
+    /**
+     * Compute the key of a prompt.
+     *
+     * @param modelDigest The digest of the model, or its name if unknown.
+     * @param prompt The prompt.
+     * @return SHA-256 over the model digest and the SHA-256 of the prompt.
+     */
+    public static byte[] key(String modelDigest, String prompt) {
+        MessageDigest md = RequestKey.sha256();
+        byte[] promptHash = md.digest(prompt.getBytes(StandardCharsets.UTF_8));
+        md.update(modelDigest.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(promptHash);
+        return md.digest();
+    }
+
+    /**
+     * Build the index, dropping a torn last record.
+     */
+    private synchronized void scan() throws IOException {
+        long size = channel.size();
+        ByteBuffer hdr = ByteBuffer.allocate(HEADER);
+        channel.read(hdr, 0);
+        hdr.flip();
+        if (hdr.remaining() < HEADER || MAGIC != hdr.getInt() || VERSION != hdr.getInt()) {
+            throw new IOException(file + " is not an embedding cache (version " + VERSION + ")");
+        }
+        long pos = HEADER;
+        ByteBuffer head = ByteBuffer.allocate(KEY + 4);
+        while (pos + KEY + 4 <= size) {
+            head.clear();
+            channel.read(head, pos);
+            int dim = head.getInt(KEY);
+            long next = pos + KEY + 4 + 4L * dim;
+            if (dim <= 0 || next > size) {
+                break;
+            }
+            byte[] k = new byte[KEY];
+            head.flip();
+            head.get(k);
+            index.put(ByteBuffer.wrap(k), pos);
+            pos = next;
+        }
+        if (pos < size) {
+            Logger.getLogger(EmbeddingCache.class.getName()).log(Level.WARNING, "Dropping torn record at {0} of {1}", new Object[]{pos, file});
+            channel.truncate(pos);
+        }
+        end = pos;
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(end, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Look up a vector.
+     *
+     * @param key See {@link #key(String, String)}.
+     * @return A copy of the vector, or null on a miss.
+     */
+    public float[] get(byte[] key) {
+        ByteBuffer k = ByteBuffer.wrap(key);
+        long pos;
+        synchronized (this) {
+            float[] v = hot.get(k);
+            if (null != v) {
+                hotHits.incrementAndGet();
+                return v.clone();
+            }
+            Long at = index.get(k);
+            if (null == at) {
+                misses.incrementAndGet();
+                return null;
+            }
+            pos = at;
+        }
+        float[] ret;
+        if (pos + KEY + 4 > Integer.MAX_VALUE - MAX_RECORD) {
+            ret = read(pos);
+        } else {
+            MappedByteBuffer m = mapping(pos);
+            int p = (int) pos + KEY;
+            int dim = m.getInt(p);
+            p += 4;
+            ret = new float[dim];
+            for (int i = 0; i < dim; i++, p += 4) {
+                ret[i] = m.getFloat(p);
+            }
+        }
+        if (null == ret) {
+            return null;
+        }
+        fileHits.incrementAndGet();
+        synchronized (this) {
+            hot.put(k, ret);
+        }
+        return ret.clone();
+    }
+
+    /**
+     * Read a record beyond what a mapping can address.
+     */
+    private float[] read(long pos) {
+        try {
+            ByteBuffer len = ByteBuffer.allocate(4);
+            channel.read(len, pos + KEY);
+            len.flip();
+            ByteBuffer vec = ByteBuffer.allocate(4 * len.getInt());
+            while (vec.hasRemaining()) {
+                if (channel.read(vec, pos + KEY + 4 + vec.position()) < 0) {
+                    return null;
+                }
+            }
+            vec.flip();
+            float[] ret = new float[vec.capacity() / 4];
+            vec.asFloatBuffer().get(ret);
+            return ret;
+        } catch (IOException ex) {
+            Logger.getLogger(EmbeddingCache.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Get a mapping that covers a record, remapping if it was appended after
+     * the current mapping was made.
+     */
+    private MappedByteBuffer mapping(long pos) {
+        MappedByteBuffer m = map;
+        if (pos + KEY + 4 <= m.limit() && pos + KEY + 4 + 4L * m.getInt((int) pos + KEY) <= m.limit()) {
+            return m;
+        }
+        synchronized (this) {
+            try {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(end, Integer.MAX_VALUE));
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Store a vector; a key that is already present is left alone.
+     *
+     * @param key See {@link #key(String, String)}.
+     * @param vector The vector.
+     * @throws IOException If appending fails.
+     */
+    public synchronized void put(byte[] key, float[] vector) throws IOException {
+        ByteBuffer k = ByteBuffer.wrap(key.clone());
+        if (index.containsKey(k)) {
+            return;
+        }
+        ByteBuffer rec = ByteBuffer.allocate(KEY + 4 + 4 * vector.length);
+        rec.put(key).putInt(vector.length);
+        rec.asFloatBuffer().put(vector);
+        rec.clear();
+        long pos = end;
+        while (rec.hasRemaining()) {
+            channel.write(rec, pos + rec.position());
+        }
+        end = pos + rec.capacity();
+        index.put(k, pos);
+        hot.put(k, vector.clone());
+    }
+
+    /**
+     * @return Number of vectors in the cache.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Flush and close the file.
+     *
+     * @throws IOException If closing fails.
+     */
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        raf.close();
+    }
+
+    public long getHotHits() {
+        return hotHits.get();
+    }
+
+    public long getFileHits() {
+        return fileHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "EmbeddingCache{" + file + ", vectors=" + index.size() + ", hot=" + hot.size() + "/" + hotSet
+                + ", hotHits=" + hotHits.get() + ", fileHits=" + fileHits.get() + ", misses=" + misses.get() + '}';
+    }
+}
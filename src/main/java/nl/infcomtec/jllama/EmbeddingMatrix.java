@@ -0,0 +1,202 @@
+package nl.infcomtec.jllama;
+
+import java.util.Arrays;
+
+/**
+ * A number of embedding vectors of the same model in one contiguous float
+ * array, row after row.
+ *
+ * @author walter
+ */
+public class EmbeddingMatrix {
+
+    /**
+     * The model that produced the vectors.
+     */
+    public final String model;
+    /**
+     * Number of vectors.
+     */
+    public final int rows;
+    /**
+     * Length of each vector.
+     */
+    public final int dim;
+    /**
+     * Vector i is at [i * dim, (i + 1) * dim).
+     */
+    public final float[] data;
+    /**
+     * Sum and sum of squares per row, made on first use; NaN where a row
+     * changed since.
+     */
+    private double[] sums;
+    private double[] squares;
+    private boolean dirty = true;
+
+    /**
+     * Constructor.
+     *
+     * @param model The model that produced the vectors.
+     * @param rows Number of vectors.
+     * @param dim Length of each vector.
+     */
+    public EmbeddingMatrix(String model, int rows, int dim) {
+        this(model, rows, dim, new float[size(rows, dim)]);
+    }
+
+    /**
+     * Number of values of a matrix, which must fit in one array.
+     *
+     * @param rows Number of vectors.
+     * @param dim Length of each vector.
+     * @return rows * dim.
+     */
+    private static int size(int rows, int dim) {
+        long n = (long) rows * dim;
+        if (rows < 0 || dim < 0 || n > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(rows + " x " + dim + " values do not fit in one array, split the vectors over several matrices");
+        }
+        return (int) n;
+    }
+
+    /**
+     * Wrap existing data.
+     *
+     * @param model The model that produced the vectors.
+     * @param rows Number of vectors.
+     * @param dim Length of each vector.
+     * @param data rows * dim values.
+     */
+    public EmbeddingMatrix(String model, int rows, int dim, float[] data) {
+        if (data.length != size(rows, dim)) {
+            throw new IllegalArgumentException("Need " + rows + " x " + dim + " values, got " + data.length);
+        }
+        this.model = model;
+        this.rows = rows;
+        this.dim = dim;
+        this.data = data;
+    }
+
+    /**
+     * @param row The vector.
+     * @return Where it starts in {@link #data}.
+     */
+    public int offset(int row) {
+        return row * dim;
+    }
+
+    /**
+     * @param row The vector.
+     * @return A copy of it.
+     */
+    public float[] row(int row) {
+        float[] ret = new float[dim];
+        System.arraycopy(data, row * dim, ret, 0, dim);
+        return ret;
+    }
+
+    /**
+     * Overwrite a vector.
+     *
+     * @param row The vector.
+     * @param vector Its new values.
+     */
+    public void set(int row, float[] vector) {
+        if (vector.length != dim) {
+            throw new IllegalArgumentException("Vector has " + vector.length + " values, not " + dim);
+        }
+        System.arraycopy(vector, 0, data, row * dim, dim);
+        synchronized (this) {
+            if (null != sums) {
+                sums[row] = Double.NaN;
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+     * Bring the per-row sums up to date.
+     */
+    private synchronized void stats() {
+        if (!dirty) {
+            return;
+        }
+        if (null == sums) {
+            sums = new double[rows];
+            squares = new double[rows];
+            Arrays.fill(sums, Double.NaN);
+        }
+        for (int r = 0; r < rows; r++) {
+            if (Double.isNaN(sums[r])) {
+                double s = 0;
+                double sq = 0;
+                for (int i = r * dim, end = i + dim; i < end; i++) {
+                    s += data[i];
+                    sq += (double) data[i] * data[i];
+                }
+                sums[r] = s;
+                squares[r] = sq;
+            }
+        }
+        dirty = false;
+    }
+
+    /**
+     * The length of a vector, computed once.
+     *
+     * @param row The vector.
+     * @return Its L2 norm.
+     */
+    public synchronized double norm(int row) {
+        stats();
+        return Math.sqrt(squares[row]);
+    }
+
+    /**
+     * The sum of every row, for Pearson correlation. Do not modify.
+     *
+     * @return Sum per row.
+     */
+    synchronized double[] sums() {
+        stats();
+        return sums;
+    }
+
+    /**
+     * The sum of squares (squared norm) of every row. Do not modify.
+     *
+     * @return Sum of squares per row.
+     */
+    synchronized double[] squares() {
+        stats();
+        return squares;
+    }
+
+    /**
+     * Scale every vector to unit length, in place. Cosine similarity against
+     * the rows is then a single dot product. Rows of all zeros stay zero.
+     *
+     * @return this.
+     */
+    public synchronized EmbeddingMatrix normalize() {
+        stats();
+        for (int r = 0; r < rows; r++) {
+            double n = Math.sqrt(squares[r]);
+            if (n != 0 && n != 1) {
+                float f = (float) (1 / n);
+                for (int i = r * dim, end = i + dim; i < end; i++) {
+                    data[i] *= f;
+                }
+                sums[r] /= n;
+                squares[r] = 1;
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "EmbeddingMatrix{" + "model=" + model + ", rows=" + rows + ", dim=" + dim + '}';
+    }
+}
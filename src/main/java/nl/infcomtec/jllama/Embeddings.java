@@ -1,5 +1,6 @@
 package nl.infcomtec.jllama;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
@@ -27,19 +28,152 @@ public class Embeddings {
 
     public static class Response {
 
-        public double[] embedding;
+        /**
+         * The vector, decoded straight from the JSON. The models compute in
+         * float32, a double would only take twice the memory.
+         */
+        public float[] embedding;
+        @JsonIgnore
+        private double[] doubles;
+        @JsonIgnore
+        private float[] doublesOf;
+        @JsonIgnore
+        private volatile Stats stats;
+
+        /**
+         * For code that still wants a double[]; made on first use and again
+         * for a new array, like {@link #stats()}.
+         *
+         * @return The vector as doubles, do not modify.
+         */
+        public synchronized double[] asDoubles() {
+            if (null == doubles || doublesOf != embedding) {
+                doubles = new double[embedding.length];
+                for (int i = 0; i < doubles.length; i++) {
+                    doubles[i] = embedding[i];
+                }
+                doublesOf = embedding;
+            }
+            return doubles;
+        }
+
+        /**
+         * The sums that do not depend on the other vector, computed once per
+         * vector (a new array means new sums).
+         *
+         * @return The statistics of {@link #embedding}.
+         */
+        Stats stats() {
+            Stats ret = stats;
+            if (null == ret || ret.of != embedding) {
+                ret = new Stats(embedding);
+                stats = ret;
+            }
+            return ret;
+        }
+
+        /**
+         * @return The L2 norm (length) of the vector.
+         */
+        public double norm() {
+            return stats().norm;
+        }
+
+        /**
+         * Scale the vector to unit length, so cosine similarity becomes the
+         * plain dot product and Euclidean distance ranks like it. The array
+         * is replaced, not changed, as it may be shared with a cache.
+         *
+         * A vector of all zeros stays that way.
+         *
+         * @return this.
+         */
+        public Response normalize() {
+            Stats st = stats();
+            if (st.norm != 0 && st.norm != 1) {
+                float[] unit = new float[embedding.length];
+                float f = (float) (1 / st.norm);
+                for (int i = 0; i < unit.length; i++) {
+                    unit[i] = embedding[i] * f;
+                }
+                embedding = unit;
+                Stats us = new Stats(unit);
+                // exact, so repeated normalize() is a no-op
+                stats = new Stats(unit, us.sum, us.sumOfSquares, 1);
+            }
+            return this;
+        }
 
         @Override
         public String toString() {
-            return "Response{embedding=double[" + embedding.length + "]}";
+            return "Response{embedding=float[" + embedding.length + "]}";
         }
     }
 
+    /**
+     * Sum, sum of squares and norm of a vector; what cosine and Pearson need
+     * besides the dot product.
+     */
+    static final class Stats {
+
+        final float[] of;
+        final double sum;
+        final double sumOfSquares;
+        final double norm;
+
+        Stats(float[] of) {
+            this.of = of;
+            double s = 0;
+            double sq = 0;
+            for (float f : of) {
+                s += f;
+                sq += (double) f * f;
+            }
+            this.sum = s;
+            this.sumOfSquares = sq;
+            this.norm = Math.sqrt(sq);
+        }
+
+        Stats(float[] of, double sum, double sumOfSquares, double norm) {
+            this.of = of;
+            this.sum = sum;
+            this.sumOfSquares = sumOfSquares;
+            this.norm = norm;
+        }
+    }
+
+    /**
+     * Request for /api/embed, several prompts at once.
+     */
+    public static class BatchRequest {
+
+        public String model;
+        public String[] input;
+    }
+
+    /**
+     * Response of /api/embed, a vector per prompt in the same order.
+     */
+    public static class BatchResponse {
+
+        public float[][] embeddings;
+    }
+
     @Override
     public String toString() {
         return "Embeddings{" + "request=" + request + ", response=" + response + '}';
     }
 
+    /**
+     * Scale the vector to unit length, see {@link Response#normalize()}.
+     *
+     * @return this.
+     */
+    public Embeddings normalize() {
+        response.normalize();
+        return this;
+    }
+
     public BufferedImage toImage(boolean log) {
         int w = (int) Math.round(Math.sqrt(response.embedding.length));
         int h = response.embedding.length / w;
@@ -49,6 +183,26 @@ public class Embeddings {
         return toImage(w, h, 1, 1, log);
     }
 
+    /**
+     * The checks every comparison needs, done once.
+     *
+     * @param other The Embeddings to compare with.
+     * @return The other vector.
+     * @throws RuntimeException If the models differ or the vectors are null or
+     * of different lengths.
+     */
+    private float[] comparable(Embeddings other) {
+        if (!request.model.equals(other.request.model)) {
+            throw new RuntimeException("Not the same model");
+        }
+        float[] vectorA = response.embedding;
+        float[] vectorB = other.response.embedding;
+        if (vectorA == null || vectorB == null || vectorA.length != vectorB.length) {
+            throw new RuntimeException("Vectors must be non-null and of equal length");
+        }
+        return vectorB;
+    }
+
     /**
      * Calculates the cosine similarity between the current object's embeddings
      * and an other's embeddings. Cosine similarity measures the cosine of the
@@ -66,29 +220,14 @@ public class Embeddings {
      * similarity.
      */
     public double cosineSimilarity(Embeddings other) {
-        if (!request.model.equals(other.request.model)) {
-            throw new RuntimeException("Not the same model");
-        }
-        double[] vectorA = response.embedding;
-        double[] vectorB = other.response.embedding;
-        if (vectorA == null || vectorB == null || vectorA.length != vectorB.length) {
-            throw new RuntimeException("Vectors must be non-null and of equal length");
-        }
-        double dotProduct = 0.0;
-        double normA = 0.0;
-        double normB = 0.0;
-        for (int i = 0; i < vectorA.length; i++) {
-            dotProduct += vectorA[i] * vectorB[i];
-            normA += Math.pow(vectorA[i], 2);
-            normB += Math.pow(vectorB[i], 2);
-        }
-        double denominator = Math.sqrt(normA) * Math.sqrt(normB);
-
+        float[] vectorA = response.embedding;
+        float[] vectorB = comparable(other);
+        // the norms are cached, so this is one dot product per comparison
+        double denominator = response.norm() * other.response.norm();
         if (denominator == 0) {
             throw new RuntimeException("The norm of one or both vectors is 0.");
         }
-
-        return dotProduct / denominator;
+        return VectorMath.dot(vectorA, 0, vectorB, 0, vectorA.length) / denominator;
     }
 
     /**
@@ -106,19 +245,9 @@ public class Embeddings {
      * match, or if the vectors are null or of different lengths.
      */
     public double euclidianDistance(Embeddings other) {
-        if (!request.model.equals(other.request.model)) {
-            throw new RuntimeException("Not the same model");
-        }
-        double[] vectorA = response.embedding;
-        double[] vectorB = other.response.embedding;
-        if (vectorA == null || vectorB == null || vectorA.length != vectorB.length) {
-            throw new RuntimeException("Vectors must be non-null and of equal length");
-        }
-        double sumSquaredDifferences = 0.0;
-        for (int i = 0; i < vectorA.length; i++) {
-            sumSquaredDifferences += Math.pow(vectorA[i] - vectorB[i], 2);
-        }
-        return Math.sqrt(sumSquaredDifferences);
+        float[] vectorA = response.embedding;
+        float[] vectorB = comparable(other);
+        return Math.sqrt(VectorMath.l2Squared(vectorA, 0, vectorB, 0, vectorA.length));
     }
 
     public BufferedImage toImage(int w, int h, int xf, int yf, boolean log) {
@@ -241,19 +370,9 @@ public class Embeddings {
      * or if the vectors are null or of different lengths.
      */
     public double manhattanDistance(Embeddings other) {
-        if (!request.model.equals(other.request.model)) {
-            throw new RuntimeException("Not the same model");
-        }
-        double[] vectorA = response.embedding;
-        double[] vectorB = other.response.embedding;
-        if (vectorA == null || vectorB == null || vectorA.length != vectorB.length) {
-            throw new RuntimeException("Vectors must be non-null and of equal length");
-        }
-        double sum = 0.0;
-        for (int i = 0; i < vectorA.length; i++) {
-            sum += Math.abs(vectorA[i] - vectorB[i]);
-        }
-        return sum;
+        float[] vectorA = response.embedding;
+        float[] vectorB = comparable(other);
+        return VectorMath.l1(vectorA, 0, vectorB, 0, vectorA.length);
     }
 
     /**
@@ -264,6 +383,8 @@ public class Embeddings {
      * The coefficient is computed as the sum of the product of differences from
      * the mean for each embedding, normalized by the square roots of the sum of
      * squared differences (variance-like calculation) for each embedding.
+     * Means and variances follow from sums kept per vector, so a comparison
+     * only costs a dot product.
      *
      * The result is a value between -1 and 1, where:<ul><li>1 indicates a
      * perfect positive linear relationship</li><li>-1 indicates a perfect
@@ -275,37 +396,16 @@ public class Embeddings {
      * linear relationship between the two embeddings.
      */
     public double pearsonCorrelation(Embeddings other) {
-        if (!request.model.equals(other.request.model)) {
-            throw new RuntimeException("Not the same model");
-        }
-        double[] vectorA = response.embedding;
-        double[] vectorB = other.response.embedding;
-        if (vectorA == null || vectorB == null || vectorA.length != vectorB.length) {
-            throw new RuntimeException("Vectors must be non-null and of equal length");
-        }
-        double meanA = 0.0;
-        double meanB = 0.0;
-        for (int i = 0; i < vectorA.length; i++) {
-            meanA += vectorA[i];
-            meanB += vectorB[i];
-        }
-        meanA /= vectorA.length;
-        meanB /= vectorB.length;
-
-        double sumProduct = 0.0;
-        double sumSquareA = 0.0;
-        double sumSquareB = 0.0;
-        for (int i = 0; i < vectorA.length; i++) {
-            double diffA = vectorA[i] - meanA;
-            double diffB = vectorB[i] - meanB;
-            sumProduct += diffA * diffB;
-            sumSquareA += diffA * diffA;
-            sumSquareB += diffB * diffB;
-        }
-        if (sumSquareA == 0 || sumSquareB == 0) {
+        float[] vectorA = response.embedding;
+        float[] vectorB = comparable(other);
+        Stats a = response.stats();
+        Stats b = other.response.stats();
+        double ret = VectorMath.pearson(vectorA.length, a.sum, b.sum,
+                VectorMath.dotDouble(vectorA, 0, vectorB, 0, vectorA.length), a.sumOfSquares, b.sumOfSquares);
+        if (Double.isNaN(ret)) {
             throw new RuntimeException("Division by zero in Pearson calculation");
         }
-        return sumProduct / (Math.sqrt(sumSquareA) * Math.sqrt(sumSquareB));
+        return ret;
     }
 
 }
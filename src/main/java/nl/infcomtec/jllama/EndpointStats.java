@@ -0,0 +1,155 @@
+package nl.infcomtec.jllama;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live load figures of one Ollama endpoint, shared by everything that sends
+ * requests to it through a {@link BalancedClient}.
+ *
+ * @author walter
+ */
+public class EndpointStats {
+
+    /**
+     * Weight of the latest sample in the moving average.
+     */
+    public static final double ALPHA = 0.3;
+    /**
+     * Number of recent first-token latencies kept for percentiles.
+     */
+    public static final int FIRST_TOKEN_SAMPLES = 128;
+    /**
+     * Fewer samples than this give no percentile.
+     */
+    public static final int MIN_FIRST_TOKEN_SAMPLES = 10;
+    private static final ConcurrentHashMap<String, EndpointStats> all = new ConcurrentHashMap<>();
+    public final String endPoint;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    /**
+     * Exponentially weighted moving average of the latency in nanoseconds,
+     * zero until the first request completes.
+     */
+    private volatile double ewma;
+    /**
+     * Ring buffer of first-token latencies in nanoseconds.
+     */
+    private final long[] firstTokens = new long[FIRST_TOKEN_SAMPLES];
+    private int firstTokenCount;
+
+    private EndpointStats(String endPoint) {
+        this.endPoint = endPoint;
+    }
+
+    /**
+     * Get the stats of an endpoint.
+     *
+     * @param endPoint The endpoint.
+     * @return The (shared) stats, created on first use.
+     */
+    public static EndpointStats of(String endPoint) {
+        EndpointStats ret = all.get(endPoint);
+        if (null == ret) {
+            all.putIfAbsent(endPoint, new EndpointStats(endPoint));
+            ret = all.get(endPoint);
+        }
+        return ret;
+    }
+
+    /**
+     * Call when sending a request.
+     *
+     * @return The start time, to pass to {@link #end(long, boolean)}.
+     */
+    public long begin() {
+        outstanding.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Call when a request is done, whichever way.
+     *
+     * @param start As returned by {@link #begin()}.
+     * @param ok False if the request failed; failures do not count towards
+     * the latency.
+     */
+    public void end(long start, boolean ok) {
+        outstanding.decrementAndGet();
+        if (ok) {
+            completed.incrementAndGet();
+            sample(System.nanoTime() - start);
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Add a latency sample to the moving average.
+     *
+     * @param nanos The latency.
+     */
+    public synchronized void sample(long nanos) {
+        ewma = 0 == ewma ? nanos : ALPHA * nanos + (1 - ALPHA) * ewma;
+    }
+
+    /**
+     * Add a time-to-first-token sample of a streamed request.
+     *
+     * @param nanos The time from sending to the first token.
+     */
+    public synchronized void sampleFirstToken(long nanos) {
+        firstTokens[firstTokenCount++ % FIRST_TOKEN_SAMPLES] = nanos;
+    }
+
+    /**
+     * Percentile of the recent first-token latencies.
+     *
+     * @param p The percentile as a fraction, for instance 0.95.
+     * @return The latency in nanoseconds, or -1 if there are too few samples.
+     */
+    public synchronized long getFirstTokenPercentile(double p) {
+        int n = Math.min(firstTokenCount, FIRST_TOKEN_SAMPLES);
+        if (n < MIN_FIRST_TOKEN_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(firstTokens, n);
+        Arrays.sort(sorted);
+        int i = (int) Math.ceil(p * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, i))];
+    }
+
+    /**
+     * @return Number of requests in flight.
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return Moving average of the latency in nanoseconds, 0 if unknown.
+     */
+    public double getEwma() {
+        return ewma;
+    }
+
+    /**
+     * Expected cost of sending one more request here: the average latency
+     * times the queue it would join. An endpoint without samples costs
+     * nothing, so new endpoints get tried.
+     *
+     * @return The cost, lower is better.
+     */
+    public double getCost() {
+        return ewma * (outstanding.get() + 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EndpointStats{%s, outstanding=%d, completed=%d, failed=%d, ewma=%.1f ms}",
+                endPoint, outstanding.get(), completed.get(), failed.get(), ewma / 1E6);
+    }
+}
@@ -0,0 +1,82 @@
+package nl.infcomtec.jllama;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Puts the {@link CircuitBreaker} of an endpoint in front of its transport:
+ * while the endpoint is down a POST fails at once with
+ * {@link CircuitBreaker.OpenException}, and every POST outcome is reported to
+ * the breaker. GET is left alone, it is what the {@link HealthChecker} probes
+ * with.
+ *
+ * @author walter
+ */
+public class GuardedTransport implements OllamaTransport {
+
+    private final OllamaTransport inner;
+    private final CircuitBreaker breaker;
+
+    /**
+     * Constructor.
+     *
+     * @param inner The transport doing the actual work.
+     */
+    public GuardedTransport(OllamaTransport inner) {
+        this.inner = inner;
+        this.breaker = CircuitBreaker.of(inner.getEndPoint());
+    }
+
+    @Override
+    public String getEndPoint() {
+        return inner.getEndPoint();
+    }
+
+    @Override
+    public InputStream post(String path, Body body) throws IOException {
+        breaker.check();
+        try {
+            InputStream ret = inner.post(path, body);
+            breaker.onSuccess();
+            return ret;
+        } catch (IOException | RuntimeException ex) {
+            breaker.report(ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postAsync(String path, Body body) {
+        try {
+            breaker.check();
+        } catch (CircuitBreaker.OpenException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        return inner.postAsync(path, body).whenComplete(new BiConsumer<byte[], Throwable>() {
+            @Override
+            public void accept(byte[] t, Throwable u) {
+                breaker.report(u instanceof CompletionException && null != u.getCause() ? u.getCause() : u);
+            }
+        });
+    }
+
+    @Override
+    public InputStream get(String path) throws IOException {
+        return inner.get(path);
+    }
+
+    /**
+     * @return The breaker guarding this transport.
+     */
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    @Override
+    public String toString() {
+        return "GuardedTransport{" + inner + ", " + breaker.getState() + '}';
+    }
+}
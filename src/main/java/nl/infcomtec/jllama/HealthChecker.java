@@ -0,0 +1,141 @@
+package nl.infcomtec.jllama;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Probes every configured endpoint ({@link OllamaConfig#ollamas}) in the
+ * background with a cheap GET of {@link Ollama#TAGS} and feeds the result to
+ * its {@link CircuitBreaker}: a failed probe opens the breaker at once, a
+ * successful one closes it. Requests thus stop going to a dead server within
+ * one probe interval and resume as soon as it is back.
+ *
+ * Probes have their own client with a short timeout and do not wait for a
+ * connection of the endpoint's pool, so a busy or hung server cannot hold
+ * up the probes, of itself or of the others (all are probed at once).
+ *
+ * @author walter
+ */
+public class HealthChecker {
+
+    /**
+     * Time a server gets to connect and answer a probe.
+     */
+    public static final Duration PROBE_TIMEOUT = Duration.ofSeconds(5);
+    private static final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(PROBE_TIMEOUT)
+            .build();
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "HealthChecker");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private static ScheduledFuture<?> task;
+
+    /**
+     * Start probing, or restart with a new interval.
+     *
+     * @param intervalSeconds Time between probe rounds.
+     */
+    public static synchronized void start(long intervalSeconds) {
+        stop();
+        task = timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probeAll();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop probing; the breakers keep their state.
+     */
+    public static synchronized void stop() {
+        if (null != task) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Probe all configured endpoints once.
+     */
+    public static void probeAll() {
+        OllamaConfig cfg = Ollama.config;
+        if (null == cfg || null == cfg.ollamas) {
+            return;
+        }
+        List<CompletableFuture<Boolean>> probes = new ArrayList<>();
+        for (String endPoint : cfg.ollamas) {
+            probes.add(probeAsync(endPoint));
+        }
+        for (CompletableFuture<Boolean> p : probes) {
+            p.join();
+        }
+    }
+
+    /**
+     * Probe one endpoint and update its breaker.
+     *
+     * @param endPoint The endpoint.
+     * @return True if it responded.
+     */
+    public static boolean probe(String endPoint) {
+        return probeAsync(endPoint).join();
+    }
+
+    /**
+     * Probe one endpoint and update its breaker, without waiting.
+     *
+     * @param endPoint The endpoint.
+     * @return Completes with true if it responded, never exceptionally.
+     */
+    public static CompletableFuture<Boolean> probeAsync(final String endPoint) {
+        final CircuitBreaker breaker = CircuitBreaker.of(endPoint);
+        CompletableFuture<HttpResponse<Void>> sent;
+        try {
+            HttpRequest rq = HttpRequest.newBuilder(URI.create(endPoint + Ollama.TAGS))
+                    .timeout(PROBE_TIMEOUT)
+                    .GET()
+                    .build();
+            sent = client.sendAsync(rq, HttpResponse.BodyHandlers.discarding());
+        } catch (IllegalArgumentException ex) {
+            sent = new CompletableFuture<>();
+            sent.completeExceptionally(ex);
+        }
+        return sent.handle(new BiFunction<HttpResponse<Void>, Throwable, Boolean>() {
+            @Override
+            public Boolean apply(HttpResponse<Void> resp, Throwable t) {
+                if (null == t && 200 == resp.statusCode()) {
+                    breaker.onSuccess();
+                    return true;
+                }
+                if (CircuitBreaker.State.OPEN != breaker.getState()) {
+                    String why = null == t ? "HTTP " + resp.statusCode() : String.valueOf(RetryPolicy.unwrap(t));
+                    Logger.getLogger(HealthChecker.class.getName()).log(Level.WARNING, "Health probe of {0} failed: {1}", new Object[]{endPoint, why});
+                }
+                breaker.trip();
+                return false;
+            }
+        });
+    }
+}
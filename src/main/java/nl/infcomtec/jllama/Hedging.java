@@ -0,0 +1,371 @@
+package nl.infcomtec.jllama;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hedged requests: a context-free request is streamed to one endpoint; if no
+ * first token has arrived by a percentile of the first-token latencies seen
+ * from that endpoint, the same request is also sent to another endpoint that
+ * has the model. The first to produce a token wins, the response stream of
+ * the other is closed right away, so a slow server does not keep its permit,
+ * thread and slot until it produces something.
+ *
+ * Only for requests without a context: with a context the conversation lives
+ * on one server.
+ *
+ * @author walter
+ */
+public class Hedging {
+
+    private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger n = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Hedging-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Can this request be hedged?
+     *
+     * @param rq The request.
+     * @return True if it has no context.
+     */
+    public static boolean isContextFree(Request rq) {
+        return null == rq.context || 0 == rq.context.length;
+    }
+
+    /**
+     * Send a request with hedging. Until enough first-token latencies of the
+     * primary endpoint are known there is no hedge, the request is just
+     * streamed to the primary to gather them.
+     *
+     * @param primary The endpoint to try first.
+     * @param rq The request, should not have a context; it is not modified.
+     * @param percentile When to hedge, for instance 0.95.
+     * @return The response of whichever endpoint answered first.
+     * @throws Exception If the request failed everywhere it was sent.
+     */
+    public static Response direct(String primary, Request rq, double percentile) throws Exception {
+        Race race = new Race(streaming(rq));
+        race.start(primary);
+        long delay = EndpointStats.of(primary).getFirstTokenPercentile(percentile);
+        if (delay >= 0) {
+            try {
+                CompletableFuture.anyOf(race.firstToken, race.result).get(delay, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                String second = second(primary, rq.model);
+                if (null != second) {
+                    race.start(second);
+                }
+            } catch (ExecutionException ex) {
+                // failed, reported below
+            }
+        }
+        try {
+            return race.result.get();
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            throw t instanceof Exception ? (Exception) t : ex;
+        }
+    }
+
+    /**
+     * The least busy other endpoint that has the model and is up.
+     */
+    private static String second(String primary, String model) {
+        String best = null;
+        int bestOut = Integer.MAX_VALUE;
+        for (String ep : Ollama.endpointsFor(model)) {
+            if (!ep.equals(primary) && CircuitBreaker.of(ep).isAvailable()) {
+                int out = EndpointStats.of(ep).getOutstanding();
+                if (out < bestOut) {
+                    bestOut = out;
+                    best = ep;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A copy of the request that streams, so the first token can be seen.
+     */
+    private static Request streaming(Request rq) {
+        Request ret = new Request();
+        ret.model = rq.model;
+        ret.prompt = rq.prompt;
+        ret.format = rq.format;
+        ret.images = rq.images;
+        ret.system = rq.system;
+        ret.template = rq.template;
+        ret.raw = rq.raw;
+        ret.stream = true;
+        ret.context = rq.context;
+        ret.keepAlive = rq.keepAlive;
+        ret.options = rq.options;
+        return ret;
+    }
+
+    /**
+     * One request sent to one or two endpoints.
+     */
+    private static class Race {
+
+        private final Request rq;
+        private final AtomicReference<Attempt> winner = new AtomicReference<>();
+        private final ArrayList<Attempt> attempts = new ArrayList<>();
+        /**
+         * Completes when some attempt produced its first token.
+         */
+        private final CompletableFuture<Void> firstToken = new CompletableFuture<>();
+        /**
+         * Completes with the response of the winner, or with the first error
+         * if every attempt failed.
+         */
+        private final CompletableFuture<Response> result = new CompletableFuture<>();
+        private int running;
+        private Throwable firstError;
+
+        Race(Request rq) {
+            this.rq = rq;
+        }
+
+        synchronized void start(String endPoint) {
+            if (null != winner.get() || result.isDone()) {
+                // too late, someone is already answering
+                return;
+            }
+            running++;
+            Attempt a = new Attempt(this, endPoint);
+            attempts.add(a);
+            pool.execute(a);
+        }
+
+        /**
+         * Make an attempt the winner, if there is none yet, and cancel the
+         * others.
+         *
+         * @return True if it is the winner.
+         */
+        boolean win(Attempt a) {
+            if (!winner.compareAndSet(null, a)) {
+                return winner.get() == a;
+            }
+            ArrayList<Attempt> losers;
+            synchronized (this) {
+                losers = new ArrayList<>(attempts);
+            }
+            for (Attempt l : losers) {
+                if (l != a) {
+                    l.cancel();
+                }
+            }
+            return true;
+        }
+
+        synchronized void finished(Attempt a, Response resp, Throwable err) {
+            running--;
+            if (null != resp) {
+                result.complete(resp);
+            } else if (null != err) {
+                if (null == firstError) {
+                    firstError = err;
+                }
+                if (winner.get() == a) {
+                    result.completeExceptionally(err);
+                } else if (0 == running && null == winner.get()) {
+                    result.completeExceptionally(firstError);
+                }
+            }
+        }
+    }
+
+    /**
+     * The request streamed to one endpoint.
+     */
+    private static class Attempt implements Runnable, OllamaClient.StreamListener {
+
+        private final Race race;
+        private final EndpointStats stats;
+        private long start;
+        /**
+         * The response being read, guarded by this attempt.
+         */
+        private InputStream body;
+        private boolean cancelled;
+
+        Attempt(Race race, String endPoint) {
+            this.race = race;
+            this.stats = EndpointStats.of(endPoint);
+        }
+
+        /**
+         * Stop this attempt: its response is closed, or not even requested.
+         */
+        void cancel() {
+            InputStream is;
+            synchronized (this) {
+                cancelled = true;
+                is = body;
+            }
+            if (null != is) {
+                try {
+                    is.close();
+                } catch (IOException ignore) {
+                    // it is gone either way
+                }
+            }
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Keep the response to close it on cancel.
+         */
+        synchronized InputStream track(InputStream is) throws IOException {
+            if (cancelled) {
+                is.close();
+                throw new CancellationException("Lost the race");
+            }
+            body = is;
+            return new Cancellable(is);
+        }
+
+        @Override
+        public boolean onResponseReceived(StreamedResponse responsePart) {
+            if (null != responsePart.error) {
+                return true;
+            }
+            if (null == race.winner.get() && race.win(this)) {
+                stats.sampleFirstToken(System.nanoTime() - start);
+                race.firstToken.complete(null);
+            }
+            return race.winner.get() == this;
+        }
+
+        @Override
+        public void run() {
+            start = stats.begin();
+            boolean ok = false;
+            try {
+                Response resp = OllamaClient.stream(new Tracked(Ollama.getTransport(stats.endPoint)), race.rq, this);
+                if (null == resp) {
+                    // lost the race and aborted, says nothing about latency
+                    race.finished(this, null, null);
+                } else if (null != resp.error) {
+                    race.finished(this, null, new IOException(resp.error));
+                } else if (race.win(this)) {
+                    // a response without any tokens also wins
+                    ok = true;
+                    race.finished(this, resp, null);
+                } else {
+                    race.finished(this, null, null);
+                }
+            } catch (CancellationException ex) {
+                // lost the race and was closed
+                race.finished(this, null, null);
+            } catch (Exception ex) {
+                race.finished(this, null, ex);
+            } finally {
+                stats.end(start, ok);
+            }
+        }
+
+        /**
+         * The endpoint's transport, handing the response to the attempt.
+         */
+        private class Tracked implements OllamaTransport {
+
+            private final OllamaTransport inner;
+
+            Tracked(OllamaTransport inner) {
+                this.inner = inner;
+            }
+
+            @Override
+            public String getEndPoint() {
+                return inner.getEndPoint();
+            }
+
+            @Override
+            public InputStream post(String path, Body body) throws IOException {
+                if (isCancelled()) {
+                    throw new CancellationException("Lost the race");
+                }
+                return track(inner.post(path, body));
+            }
+
+            @Override
+            public CompletableFuture<byte[]> postAsync(String path, Body body) {
+                return inner.postAsync(path, body);
+            }
+
+            @Override
+            public InputStream get(String path) throws IOException {
+                return inner.get(path);
+            }
+        }
+
+        /**
+         * A response that, once cancelled, fails with CancellationException
+         * rather than as a broken connection, so it is not retried.
+         */
+        private class Cancellable extends FilterInputStream {
+
+            Cancellable(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                try {
+                    return check(super.read());
+                } catch (IOException ex) {
+                    throw cancelledOr(ex);
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return check(super.read(b, off, len));
+                } catch (IOException ex) {
+                    throw cancelledOr(ex);
+                }
+            }
+
+            private int check(int n) {
+                if (n < 0 && isCancelled()) {
+                    throw new CancellationException("Lost the race");
+                }
+                return n;
+            }
+
+            private IOException cancelledOr(IOException ex) {
+                if (isCancelled()) {
+                    throw new CancellationException("Lost the race");
+                }
+                return ex;
+            }
+        }
+    }
+}
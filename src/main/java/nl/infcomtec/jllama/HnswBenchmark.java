@@ -0,0 +1,115 @@
+package nl.infcomtec.jllama;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Recall versus latency of {@link HnswIndex} against the exact
+ * {@link SimilaritySearch}, to pick M, efConstruction and efSearch. No server
+ * needed: the vectors are random points around random centers, which is
+ * closer to real embeddings (topics) than uniform noise.
+ *
+ * Arguments, all optional: vectors (20000), dim (384), M (16),
+ * efConstruction (200), queries (200), k (10).
+ *
+ * @author walter
+ */
+public class HnswBenchmark {
+
+    private static final int[] EF_SEARCH = {10, 20, 40, 80, 160, 320};
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int dim = args.length > 1 ? Integer.parseInt(args[1]) : 384;
+        int m = args.length > 2 ? Integer.parseInt(args[2]) : HnswIndex.DEFAULT_M;
+        int efC = args.length > 3 ? Integer.parseInt(args[3]) : HnswIndex.DEFAULT_EF_CONSTRUCTION;
+        int queries = args.length > 4 ? Integer.parseInt(args[4]) : 200;
+        int k = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+        Random rnd = new Random(42);
+        EmbeddingMatrix corpus = clustered(rnd, n, dim);
+        EmbeddingMatrix probes = clustered(rnd, queries, dim);
+
+        HnswIndex index = new HnswIndex(null, dim, Metric.COSINE, m, efC);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            index.add(corpus.row(i));
+        }
+        long t1 = System.nanoTime();
+        System.out.format("%d x %d, M=%d, efConstruction=%d: built in %.1f s (%.0f inserts/s)%n",
+                n, dim, m, efC, (t1 - t0) / 1E9, n * 1E9 / (t1 - t0));
+
+        File f = File.createTempFile("hnsw", ".bin");
+        try {
+            t0 = System.nanoTime();
+            index.save(f);
+            t1 = System.nanoTime();
+            HnswIndex loaded = HnswIndex.load(f);
+            long t2 = System.nanoTime();
+            System.out.format("saved %,d bytes in %.0f ms, loaded in %.0f ms%n",
+                    f.length(), (t1 - t0) / 1E6, (t2 - t1) / 1E6);
+            index = loaded;
+        } finally {
+            f.delete();
+        }
+
+        SimilaritySearch exact = new SimilaritySearch(corpus);
+        List<Set<Integer>> truth = new ArrayList<>(queries);
+        long tExact = 0;
+        for (int q = 0; q < queries; q++) {
+            long s = System.nanoTime();
+            List<SearchHit> hits = exact.search(probes.row(q), k, Metric.COSINE);
+            tExact += System.nanoTime() - s;
+            Set<Integer> rows = new HashSet<>();
+            for (SearchHit h : hits) {
+                rows.add(h.row);
+            }
+            truth.add(rows);
+        }
+        System.out.format("exact:          recall 1.000, %8.1f us/query%n", tExact / 1E3 / queries);
+        for (int ef : EF_SEARCH) {
+            index.setEfSearch(ef);
+            // warm up
+            for (int q = 0; q < queries; q++) {
+                index.search(probes.row(q), k);
+            }
+            int found = 0;
+            long t = 0;
+            for (int q = 0; q < queries; q++) {
+                float[] probe = probes.row(q);
+                long s = System.nanoTime();
+                List<SearchHit> hits = index.search(probe, k);
+                t += System.nanoTime() - s;
+                for (SearchHit h : hits) {
+                    if (truth.get(q).contains(h.row)) {
+                        found++;
+                    }
+                }
+            }
+            System.out.format("efSearch %4d:  recall %.3f, %8.1f us/query%n",
+                    ef, (double) found / (queries * k), t / 1E3 / queries);
+        }
+    }
+
+    private static EmbeddingMatrix clustered(Random rnd, int rows, int dim) {
+        int clusters = Math.max(1, rows / 100);
+        Random centers = new Random(7);
+        float[][] c = new float[Math.min(clusters, 1000)][dim];
+        for (float[] v : c) {
+            for (int i = 0; i < dim; i++) {
+                v[i] = (float) centers.nextGaussian();
+            }
+        }
+        EmbeddingMatrix ret = new EmbeddingMatrix(null, rows, dim);
+        for (int r = 0; r < rows; r++) {
+            float[] center = c[rnd.nextInt(c.length)];
+            for (int i = 0; i < dim; i++) {
+                ret.data[r * dim + i] = center[i] + (float) rnd.nextGaussian() * 0.7f;
+            }
+        }
+        return ret;
+    }
+}
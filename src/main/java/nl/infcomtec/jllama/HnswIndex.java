@@ -0,0 +1,645 @@
+package nl.infcomtec.jllama;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Approximate nearest neighbour index over embedding vectors, a hierarchical
+ * navigable small world graph (Malkov and Yashunin, 2016).
+ *
+ * Every vector is a node on layer 0 and, with decreasing probability, on
+ * layers above it. A search walks greedily down from the single node on the
+ * top layer and ends with a best-first search of width efSearch on layer 0.
+ * <dl>
+ * <dt>M</dt><dd>Neighbours per node per layer (twice that on layer 0). More
+ * costs memory and insert time, and gives better recall.</dd>
+ * <dt>efConstruction</dt><dd>Search width while inserting; better graph,
+ * slower inserts.</dd>
+ * <dt>efSearch</dt><dd>Search width of a query, can be changed at any time;
+ * the recall versus latency knob. See {@link HnswBenchmark}.</dd>
+ * </dl>
+ * Inserts may run concurrently with each other and with searches; each
+ * node's neighbour lists have their own lock. For COSINE vectors are stored
+ * at unit length and for PEARSON also centered, so both become a dot
+ * product.
+ *
+ * @author walter
+ */
+public class HnswIndex {
+
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 200;
+    public static final int DEFAULT_EF_SEARCH = 64;
+    private static final int MAGIC = 0x484E5357; // "HNSW"
+    private static final int VERSION = 1;
+    private static final int MAX_LEVEL = 16;
+
+    /**
+     * The model of the vectors, may be null.
+     */
+    public final String model;
+    public final int dim;
+    public final Metric metric;
+    public final int m;
+    public final int efConstruction;
+    private volatile int efSearch = DEFAULT_EF_SEARCH;
+    private final int m0;
+    private final double levelFactor;
+    /**
+     * Node by id. Replaced (under count) when it grows; a node is stored
+     * before any other node links to it.
+     */
+    private volatile Node[] nodes = new Node[1024];
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile Node entry;
+    /**
+     * Inserts share it, save takes it exclusively for a consistent snapshot.
+     */
+    private final ReentrantReadWriteLock saving = new ReentrantReadWriteLock();
+    private final ThreadLocal<Visited> visited = new ThreadLocal<Visited>() {
+        @Override
+        protected Visited initialValue() {
+            return new Visited();
+        }
+    };
+
+    /**
+     * Index with the default parameters.
+     *
+     * @param model The model of the vectors, may be null.
+     * @param dim Length of the vectors.
+     * @param metric How to compare them.
+     */
+    public HnswIndex(String model, int dim, Metric metric) {
+        this(model, dim, metric, DEFAULT_M, DEFAULT_EF_CONSTRUCTION);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param model The model of the vectors, may be null.
+     * @param dim Length of the vectors.
+     * @param metric How to compare them.
+     * @param m Neighbours per node per layer.
+     * @param efConstruction Search width while inserting.
+     */
+    public HnswIndex(String model, int dim, Metric metric, int m, int efConstruction) {
+        if (m < 2 || efConstruction < 1) {
+            throw new IllegalArgumentException("Need M >= 2 and efConstruction >= 1");
+        }
+        this.model = model;
+        this.dim = dim;
+        this.metric = metric;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.m0 = 2 * m;
+        this.levelFactor = 1 / Math.log(m);
+    }
+
+    /**
+     * @param efSearch Search width of queries, at least k is used.
+     */
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    /**
+     * @return Number of vectors in the index.
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * Add the vector of some embeddings.
+     *
+     * @param e Embeddings of our model.
+     * @return The id of the vector, they are numbered from 0 in order of
+     * insertion.
+     */
+    public int add(Embeddings e) {
+        if (null != model && !model.equals(e.request.model)) {
+            throw new RuntimeException("Not the same model");
+        }
+        return add(e.response.embedding);
+    }
+
+    /**
+     * Add a vector.
+     *
+     * @param vector The vector, it is copied.
+     * @return The id of the vector, they are numbered from 0 in order of
+     * insertion.
+     */
+    public int add(float[] vector) {
+        float[] v = prepare(vector);
+        saving.readLock().lock();
+        try {
+            int id = count.getAndIncrement();
+            int level = Math.min(MAX_LEVEL, (int) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * levelFactor));
+            Node node = new Node(id, v, level, m, m0);
+            store(id, node);
+            Node ep = entry;
+            if (null == ep) {
+                synchronized (this) {
+                    if (null == entry) {
+                        entry = node;
+                        return id;
+                    }
+                    ep = entry;
+                }
+            }
+            Node cur = ep;
+            for (int l = ep.level(); l > level; l--) {
+                cur = node(id(searchLayer(v, cur, 1, l)[0]));
+            }
+            for (int l = Math.min(level, ep.level()); l >= 0; l--) {
+                long[] found = searchLayer(v, cur, efConstruction, l);
+                int[] picked = select(found, l == 0 ? m0 : m, id);
+                node.setNeighbours(l, picked, picked.length);
+                for (int nb : picked) {
+                    link(nb, id, l);
+                }
+                cur = node(id(found[0]));
+            }
+            if (level > ep.level()) {
+                synchronized (this) {
+                    if (level > entry.level()) {
+                        entry = node;
+                    }
+                }
+            }
+            return id;
+        } finally {
+            saving.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the vectors closest to some embeddings.
+     *
+     * @param query Embeddings of our model.
+     * @param k How many to return.
+     * @return At most k hits, closest first, row is the id.
+     */
+    public List<SearchHit> search(Embeddings query, int k) {
+        if (null != model && !model.equals(query.request.model)) {
+            throw new RuntimeException("Not the same model");
+        }
+        return search(query.response.embedding, k);
+    }
+
+    /**
+     * Find the vectors closest to a vector.
+     *
+     * @param query The vector.
+     * @param k How many to return.
+     * @return At most k hits, closest first, row is the id; score as per
+     * {@link Metric}.
+     */
+    public List<SearchHit> search(float[] query, int k) {
+        List<SearchHit> ret = new ArrayList<>();
+        Node ep = entry;
+        if (null == ep || k <= 0) {
+            return ret;
+        }
+        float[] q = prepare(query);
+        Node cur = ep;
+        for (int l = ep.level(); l > 0; l--) {
+            cur = node(id(searchLayer(q, cur, 1, l)[0]));
+        }
+        // the heaps are sized by ef, there are no more than size() to find
+        long[] found = searchLayer(q, cur, Math.max(efSearch, Math.min(k, size())), 0);
+        for (int i = 0; i < found.length && i < k; i++) {
+            ret.add(new SearchHit(id(found[i]), score(dist(found[i]))));
+        }
+        return ret;
+    }
+
+    /**
+     * Write the index to a file, replacing it atomically. Inserts wait while
+     * this runs, searches do not.
+     *
+     * @param file Where to write to.
+     * @throws IOException If writing fails.
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        saving.writeLock().lock();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            int n = count.get();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(null == model ? "" : model);
+            out.writeUTF(metric.name());
+            out.writeInt(dim);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(efSearch);
+            out.writeInt(n);
+            Node ep = entry;
+            out.writeInt(null == ep ? -1 : ep.id);
+            for (int id = 0; id < n; id++) {
+                Node node = node(id);
+                out.writeByte(node.level());
+                for (float f : node.vector) {
+                    out.writeFloat(f);
+                }
+                for (int l = 0; l <= node.level(); l++) {
+                    int[] nbs = node.neighbours(l);
+                    out.writeShort(nbs.length);
+                    for (int nb : nbs) {
+                        out.writeInt(nb);
+                    }
+                }
+            }
+        } finally {
+            saving.writeLock().unlock();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read an index written by {@link #save(File)}.
+     *
+     * @param file The file.
+     * @return The index, ready for searches and inserts.
+     * @throws IOException If it cannot be read or is not an index.
+     */
+    public static HnswIndex load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+                throw new IOException(file + " is not an HNSW index (version " + VERSION + ")");
+            }
+            String model = in.readUTF();
+            Metric metric = Metric.valueOf(in.readUTF());
+            int dim = in.readInt();
+            int m = in.readInt();
+            int efConstruction = in.readInt();
+            HnswIndex ret = new HnswIndex(model.isEmpty() ? null : model, dim, metric, m, efConstruction);
+            ret.efSearch = in.readInt();
+            int n = in.readInt();
+            int ep = in.readInt();
+            Node[] nodes = new Node[Math.max(1024, n)];
+            int[] buf = new int[ret.m0];
+            for (int id = 0; id < n; id++) {
+                int level = in.readByte();
+                float[] v = new float[dim];
+                for (int i = 0; i < dim; i++) {
+                    v[i] = in.readFloat();
+                }
+                Node node = new Node(id, v, level, m, ret.m0);
+                for (int l = 0; l <= level; l++) {
+                    int cnt = in.readShort();
+                    for (int i = 0; i < cnt; i++) {
+                        buf[i] = in.readInt();
+                    }
+                    node.setNeighbours(l, buf, cnt);
+                }
+                nodes[id] = node;
+            }
+            ret.nodes = nodes;
+            ret.count.set(n);
+            ret.entry = ep < 0 ? null : nodes[ep];
+            return ret;
+        }
+    }
+
+    /**
+     * Copy a vector into the form it is stored and searched in.
+     */
+    private float[] prepare(float[] vector) {
+        if (vector.length != dim) {
+            throw new IllegalArgumentException("Vector has " + vector.length + " values, not " + dim);
+        }
+        float[] v = Arrays.copyOf(vector, dim);
+        if (Metric.PEARSON == metric) {
+            float mean = VectorMath.sum(v, 0, dim) / dim;
+            for (int i = 0; i < dim; i++) {
+                v[i] -= mean;
+            }
+        }
+        if (Metric.COSINE == metric || Metric.PEARSON == metric) {
+            double norm = Math.sqrt(VectorMath.sumOfSquares(v, 0, dim));
+            if (norm > 0) {
+                float f = (float) (1 / norm);
+                for (int i = 0; i < dim; i++) {
+                    v[i] *= f;
+                }
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Distance between stored vectors, lower is closer and never negative.
+     */
+    private float distance(float[] a, float[] b) {
+        switch (metric) {
+            case L2:
+                return VectorMath.l2Squared(a, 0, b, 0, dim);
+            case L1:
+                return VectorMath.l1(a, 0, b, 0, dim);
+            default:
+                return Math.max(0, 1 - VectorMath.dot(a, 0, b, 0, dim));
+        }
+    }
+
+    /**
+     * Turn an internal distance into the score of the metric.
+     */
+    private double score(float d) {
+        switch (metric) {
+            case L2:
+                return Math.sqrt(d);
+            case L1:
+                return d;
+            default:
+                return 1 - d;
+        }
+    }
+
+    /**
+     * A distance and an id in one long that sorts by distance (a non-negative
+     * float sorts like its bits), so the heaps need no objects.
+     */
+    private static long key(float d, int id) {
+        return ((long) Float.floatToIntBits(d) << 32) | id;
+    }
+
+    private static float dist(long key) {
+        return Float.intBitsToFloat((int) (key >>> 32));
+    }
+
+    private static int id(long key) {
+        return (int) key;
+    }
+
+    private Node node(int id) {
+        return nodes[id];
+    }
+
+    private void store(int id, Node node) {
+        synchronized (count) {
+            Node[] all = nodes;
+            if (id >= all.length) {
+                all = Arrays.copyOf(all, Math.max(id + 1, all.length * 2));
+            }
+            all[id] = node;
+            nodes = all;
+        }
+    }
+
+    /**
+     * Best-first search of one layer.
+     *
+     * @return Up to ef keys, closest first.
+     */
+    private long[] searchLayer(float[] q, Node ep, int ef, int level) {
+        Visited seen = visited.get();
+        seen.clear(count.get());
+        int epId = ep.id;
+        LongHeap candidates = new LongHeap(ef + 1);
+        LongHeap results = new LongHeap(ef + 1); // keys negated, so the root is the farthest
+        long k0 = key(distance(q, ep.vector), epId);
+        seen.visit(epId);
+        candidates.push(k0);
+        results.push(-k0);
+        while (!candidates.isEmpty()) {
+            long c = candidates.peek();
+            if (results.size() >= ef && dist(c) > dist(-results.peek())) {
+                break;
+            }
+            candidates.pop();
+            for (int nb : node(id(c)).neighbours(level)) {
+                if (seen.visit(nb)) {
+                    float d = distance(q, node(nb).vector);
+                    if (results.size() < ef || d < dist(-results.peek())) {
+                        long k = key(d, nb);
+                        candidates.push(k);
+                        results.push(-k);
+                        if (results.size() > ef) {
+                            results.pop();
+                        }
+                    }
+                }
+            }
+        }
+        long[] ret = new long[results.size()];
+        for (int i = ret.length - 1; i >= 0; i--) {
+            ret[i] = -results.pop();
+        }
+        return ret;
+    }
+
+    /**
+     * The neighbour selection heuristic: take candidates closest first, but
+     * skip one that is closer to an already taken neighbour than to the
+     * base, so the links spread in all directions.
+     *
+     * @param sorted Candidate keys, closest to the base first.
+     * @param max How many to take at most.
+     * @param self Id of the base, never taken.
+     */
+    private int[] select(long[] sorted, int max, int self) {
+        int[] ret = new int[Math.min(max, sorted.length)];
+        int n = 0;
+        for (int i = 0; i < sorted.length && n < ret.length; i++) {
+            int c = id(sorted[i]);
+            if (c == self) {
+                continue;
+            }
+            float dc = dist(sorted[i]);
+            float[] vc = node(c).vector;
+            boolean good = true;
+            for (int j = 0; j < n && good; j++) {
+                good = distance(vc, node(ret[j]).vector) >= dc;
+            }
+            if (good) {
+                ret[n++] = c;
+            }
+        }
+        return Arrays.copyOf(ret, n);
+    }
+
+    /**
+     * Add a link from node target to node newId, pruning target's list with
+     * the heuristic when it is full.
+     */
+    private void link(int target, int newId, int level) {
+        Node t = node(target);
+        int max = 0 == level ? m0 : m;
+        synchronized (t) {
+            int[] list = t.links[level];
+            int cnt = list[0];
+            if (cnt < max) {
+                list[cnt + 1] = newId;
+                list[0] = cnt + 1;
+                return;
+            }
+            long[] cand = new long[cnt + 1];
+            for (int i = 0; i < cnt; i++) {
+                cand[i] = key(distance(t.vector, node(list[i + 1]).vector), list[i + 1]);
+            }
+            cand[cnt] = key(distance(t.vector, node(newId).vector), newId);
+            Arrays.sort(cand);
+            int[] keep = select(cand, max, target);
+            t.setNeighbours(level, keep, keep.length);
+        }
+    }
+
+    /**
+     * A vector and its neighbour lists, one per layer it is on; list[0] is
+     * the number of neighbours.
+     */
+    private static final class Node {
+
+        final int id;
+        final float[] vector;
+        final int[][] links;
+
+        Node(int id, float[] vector, int level, int m, int m0) {
+            this.id = id;
+            this.vector = vector;
+            this.links = new int[level + 1][];
+            for (int l = 0; l <= level; l++) {
+                links[l] = new int[(0 == l ? m0 : m) + 1];
+            }
+        }
+
+        int level() {
+            return links.length - 1;
+        }
+
+        synchronized int[] neighbours(int level) {
+            if (level >= links.length) {
+                return new int[0];
+            }
+            int[] l = links[level];
+            return Arrays.copyOfRange(l, 1, 1 + l[0]);
+        }
+
+        synchronized void setNeighbours(int level, int[] ids, int n) {
+            int[] l = links[level];
+            System.arraycopy(ids, 0, l, 1, n);
+            l[0] = n;
+        }
+    }
+
+    /**
+     * Visited marks per thread, cleared in O(1) by bumping a generation.
+     */
+    private static final class Visited {
+
+        private int[] marks = new int[1024];
+        private int gen;
+
+        void clear(int size) {
+            if (size > marks.length) {
+                marks = new int[Math.max(size, marks.length * 2)];
+                gen = 0;
+            }
+            gen++;
+            if (0 == gen) {
+                Arrays.fill(marks, 0);
+                gen = 1;
+            }
+        }
+
+        /**
+         * @return true if not seen before.
+         */
+        boolean visit(int id) {
+            if (id >= marks.length) {
+                // inserted after the search started
+                marks = Arrays.copyOf(marks, Math.max(id + 1, marks.length * 2));
+            }
+            if (gen == marks[id]) {
+                return false;
+            }
+            marks[id] = gen;
+            return true;
+        }
+    }
+
+    /**
+     * A binary min-heap of longs.
+     */
+    private static final class LongHeap {
+
+        private long[] a;
+        private int size;
+
+        LongHeap(int capacity) {
+            a = new long[Math.max(4, capacity)];
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return 0 == size;
+        }
+
+        long peek() {
+            return a[0];
+        }
+
+        void push(long v) {
+            if (size == a.length) {
+                a = Arrays.copyOf(a, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int p = (i - 1) >>> 1;
+                if (a[p] <= v) {
+                    break;
+                }
+                a[i] = a[p];
+                i = p;
+            }
+            a[i] = v;
+        }
+
+        long pop() {
+            long ret = a[0];
+            long v = a[--size];
+            int i = 0;
+            while (true) {
+                int c = 2 * i + 1;
+                if (c >= size) {
+                    break;
+                }
+                if (c + 1 < size && a[c + 1] < a[c]) {
+                    c++;
+                }
+                if (v <= a[c]) {
+                    break;
+                }
+                a[i] = a[c];
+                i = c;
+            }
+            a[i] = v;
+            return ret;
+        }
+    }
+}
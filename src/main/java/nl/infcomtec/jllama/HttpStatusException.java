@@ -0,0 +1,36 @@
+package nl.infcomtec.jllama;
+
+import java.io.IOException;
+
+/**
+ * The server was reached but answered with a status other than 200 OK.
+ *
+ * @author walter
+ */
+public class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+    /**
+     * The HTTP status code.
+     */
+    public final int status;
+
+    /**
+     * Constructor.
+     *
+     * @param status The HTTP status code.
+     * @param message What went wrong, including the body the server sent.
+     */
+    public HttpStatusException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * @return True for a 5xx status, the server is in trouble rather than
+     * the request.
+     */
+    public boolean isServerError() {
+        return status >= 500;
+    }
+}
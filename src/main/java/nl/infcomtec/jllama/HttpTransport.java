@@ -0,0 +1,330 @@
+package nl.infcomtec.jllama;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Default transport, based on java.net.http.HttpClient.
+ *
+ * Each instance owns one HttpClient and therefore one pool of keep-alive
+ * connections to its endpoint. The number of simultaneous requests (and thus
+ * pooled connections) is limited to the configured pool size; a permit is
+ * held until the response body is closed. Asynchronous requests wait for a
+ * permit without occupying a thread.
+ *
+ * Request bodies are streamed: a writer thread serializes into a small pipe
+ * that HttpClient sends from (chunked), so a request with megabytes of images
+ * or context never exists as a String or byte[].
+ *
+ * @author walter
+ */
+public class HttpTransport implements OllamaTransport {
+
+    /**
+     * Size of the pipe between the body writer and HttpClient.
+     */
+    private static final int PIPE_SIZE = 64 * 1024;
+    private static final ExecutorService writers = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger n = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "HttpTransport-writer-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final String endPoint;
+    private final HttpClient client;
+    private final Duration readTimeout;
+    private final Permits pool;
+
+    /**
+     * Create a transport using the timeouts and pool size from
+     * {@link Ollama#config}.
+     *
+     * @param endPoint The endpoint to connect to.
+     */
+    public HttpTransport(String endPoint) {
+        this(endPoint, null == Ollama.config ? new OllamaConfig() : Ollama.config);
+    }
+
+    private HttpTransport(String endPoint, OllamaConfig cfg) {
+        this(endPoint, cfg.effectiveConnectTimeout(), cfg.effectiveReadTimeout(), cfg.effectivePoolSize());
+    }
+
+    /**
+     * Create a transport.
+     *
+     * @param endPoint The endpoint to connect to.
+     * @param connectTimeout Maximum time to establish a connection.
+     * @param readTimeout Maximum time to wait for the response headers; note
+     * that a non-streamed generate only responds when the model is done.
+     * @param poolSize Maximum number of connections to this endpoint.
+     */
+    public HttpTransport(String endPoint, Duration connectTimeout, Duration readTimeout, int poolSize) {
+        this.endPoint = endPoint;
+        this.readTimeout = readTimeout;
+        this.pool = new Permits(Math.max(1, poolSize));
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(connectTimeout)
+                .build();
+    }
+
+    @Override
+    public String getEndPoint() {
+        return endPoint;
+    }
+
+    @Override
+    public InputStream post(String path, Body body) throws IOException {
+        HttpRequest rq = HttpRequest.newBuilder(URI.create(endPoint + path))
+                .timeout(readTimeout)
+                .header("Content-Type", "application/json")
+                .POST(streamed(body))
+                .build();
+        return send(rq);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postAsync(String path, Body body) {
+        final HttpRequest rq = HttpRequest.newBuilder(URI.create(endPoint + path))
+                .timeout(readTimeout)
+                .header("Content-Type", "application/json")
+                .POST(streamed(body))
+                .build();
+        return pool.acquire().thenCompose(new Function<Void, CompletableFuture<HttpResponse<byte[]>>>() {
+            @Override
+            public CompletableFuture<HttpResponse<byte[]>> apply(Void permit) {
+                return client.sendAsync(rq, HttpResponse.BodyHandlers.ofByteArray());
+            }
+        }).handle(new BiFunction<HttpResponse<byte[]>, Throwable, byte[]>() {
+            @Override
+            public byte[] apply(HttpResponse<byte[]> resp, Throwable t) {
+                pool.release();
+                if (null != t) {
+                    throw t instanceof CompletionException ? (CompletionException) t : new CompletionException(t);
+                }
+                if (200 != resp.statusCode()) {
+                    String err = new String(resp.body(), StandardCharsets.UTF_8).trim();
+                    throw new CompletionException(new HttpStatusException(resp.statusCode(), "HTTP " + resp.statusCode() + " from " + rq.uri() + ": " + err));
+                }
+                return resp.body();
+            }
+        });
+    }
+
+    @Override
+    public InputStream get(String path) throws IOException {
+        HttpRequest rq = HttpRequest.newBuilder(URI.create(endPoint + path))
+                .timeout(readTimeout)
+                .GET()
+                .build();
+        return send(rq);
+    }
+
+    /**
+     * Turn a body writer into something HttpClient can send: each time the
+     * body is needed a writer thread starts filling a pipe.
+     *
+     * @param body Writes the body.
+     * @return The publisher for the HTTP request.
+     */
+    private static HttpRequest.BodyPublisher streamed(final Body body) {
+        return HttpRequest.BodyPublishers.ofInputStream(new Supplier<InputStream>() {
+            @Override
+            public InputStream get() {
+                final PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+                final PipedOutputStream out;
+                try {
+                    out = new PipedOutputStream(in);
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                writers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try (PipedOutputStream os = out) {
+                            body.writeTo(os);
+                        } catch (IOException ex) {
+                            // the server gets truncated JSON and rejects the request
+                            Ollama.oops(ex);
+                        }
+                    }
+                });
+                return in;
+            }
+        });
+    }
+
+    /**
+     * Send a request while holding a pool permit.
+     *
+     * @param rq The request.
+     * @return The response body, releases the permit when closed.
+     * @throws IOException On any failure or a status other than 200.
+     */
+    private InputStream send(HttpRequest rq) throws IOException {
+        pool.acquireBlocking();
+        boolean handedOff = false;
+        try {
+            HttpResponse<InputStream> resp = client.send(rq, HttpResponse.BodyHandlers.ofInputStream());
+            if (200 != resp.statusCode()) {
+                String err;
+                try (InputStream is = resp.body()) {
+                    err = new String(is.readAllBytes(), StandardCharsets.UTF_8).trim();
+                }
+                throw new HttpStatusException(resp.statusCode(), "HTTP " + resp.statusCode() + " from " + rq.uri() + ": " + err);
+            }
+            handedOff = true;
+            return new PermitStream(resp.body());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + rq.uri());
+        } finally {
+            if (!handedOff) {
+                pool.release();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HttpTransport{" + "endPoint=" + endPoint + ", free=" + pool.available() + '}';
+    }
+
+    /**
+     * A counting semaphore whose waiters are futures rather than threads.
+     */
+    private class Permits {
+
+        private final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+        private int free;
+
+        Permits(int free) {
+            this.free = free;
+        }
+
+        /**
+         * Get a permit.
+         *
+         * @return Completes (in FIFO order) once a permit is ours.
+         */
+        CompletableFuture<Void> acquire() {
+            synchronized (waiting) {
+                if (free > 0) {
+                    free--;
+                    return CompletableFuture.completedFuture(null);
+                }
+                CompletableFuture<Void> ret = new CompletableFuture<>();
+                waiting.add(ret);
+                return ret;
+            }
+        }
+
+        /**
+         * Get a permit, parking the calling thread until one is available.
+         *
+         * @throws IOException If interrupted while waiting.
+         */
+        void acquireBlocking() throws IOException {
+            CompletableFuture<Void> permit = acquire();
+            try {
+                permit.get();
+            } catch (InterruptedException ex) {
+                if (!permit.cancel(false)) {
+                    // granted just now, give it back
+                    release();
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a connection to " + endPoint);
+            } catch (ExecutionException ex) {
+                throw new IOException(ex.getCause());
+            }
+        }
+
+        /**
+         * Give back a permit, handing it to the longest waiter if any.
+         */
+        void release() {
+            while (true) {
+                CompletableFuture<Void> next;
+                synchronized (waiting) {
+                    next = waiting.poll();
+                    if (null == next) {
+                        free++;
+                        return;
+                    }
+                }
+                if (next.complete(null)) {
+                    // a cancelled waiter does not get it, try the next one
+                    return;
+                }
+            }
+        }
+
+        int available() {
+            synchronized (waiting) {
+                return free;
+            }
+        }
+    }
+
+    /**
+     * Response body that gives back its pool permit exactly once on close.
+     * Whatever is already buffered (typically a trailing newline) is drained
+     * first so HttpClient can return the connection to its keep-alive pool;
+     * an aborted stream is not drained, its connection is simply dropped.
+     */
+    private class PermitStream extends FilterInputStream {
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        PermitStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true)) {
+                try {
+                    byte[] buf = new byte[512];
+                    for (int i = 0; i < 16 && in.available() > 0 && in.read(buf) >= 0; i++) {
+                        // drain
+                    }
+                } catch (IOException ignore) {
+                    // the connection will not be reused
+                }
+                try {
+                    super.close();
+                } finally {
+                    pool.release();
+                }
+            }
+        }
+    }
+}
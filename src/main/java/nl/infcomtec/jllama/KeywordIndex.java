@@ -0,0 +1,479 @@
+package nl.infcomtec.jllama;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Full text index of the knowledge blocks, scored with BM25.
+ *
+ * Every block is one document made of its title, content and keywords; a
+ * term in the title counts {@link #TITLE_WEIGHT} times, in the keywords
+ * {@link #KEYWORD_WEIGHT} times. Per term a posting list holds the
+ * documents and (weighted) term frequencies, so a query only touches the
+ * documents that contain one of its terms.
+ *
+ * Blocks are (re)indexed as they are saved and the index is written in the
+ * background to {@link #INDEX_FILE}, next to the KB folder. On first use the
+ * saved index is checked against the blocks on disk, so blocks added or
+ * changed by hand are picked up too.
+ *
+ * @author walter
+ */
+public class KeywordIndex {
+
+    public static final File INDEX_FILE = new File(KnowledgeIndex.INDEX_DIR, "keywords.idx");
+    public static final float K1 = 1.2f;
+    public static final float B = 0.75f;
+    public static final int TITLE_WEIGHT = 2;
+    public static final int KEYWORD_WEIGHT = 3;
+    /**
+     * Longer runs of letters and digits are not words but pasted data
+     * (base64 and the like); skipped, they would only bloat the index.
+     */
+    public static final int MAX_TOKEN = 64;
+    private static final int MAGIC = 0x4A4C4B57; // "JLKW"
+    private static final int VERSION = 2;
+    private static final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "KeywordIndex");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private static KeywordIndex defaultIndex;
+    private final File file;
+    /**
+     * Per document (id): the block, a digest of its text, length and
+     * distinct terms.
+     * Ids of removed blocks are reused.
+     */
+    private final ArrayList<String> names = new ArrayList<>();
+    private final ArrayList<String> digests = new ArrayList<>();
+    private final ArrayList<String[]> terms = new ArrayList<>();
+    private float[] lengths = new float[64];
+    private final ArrayList<Integer> free = new ArrayList<>();
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final HashMap<String, Postings> postings = new HashMap<>();
+    private double totalLength;
+    private final AtomicBoolean saveQueued = new AtomicBoolean();
+
+    /**
+     * The documents that contain a term.
+     */
+    private static final class Postings {
+
+        int size;
+        int[] docs = new int[4];
+        float[] freqs = new float[4];
+
+        void add(int doc, float freq) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            docs[size] = doc;
+            freqs[size++] = freq;
+        }
+
+        void remove(int doc) {
+            for (int i = 0; i < size; i++) {
+                if (docs[i] == doc) {
+                    // order does not matter, move the last one here
+                    size--;
+                    docs[i] = docs[size];
+                    freqs[i] = freqs[size];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Open an index file; it does not have to exist yet.
+     *
+     * @param file Where the index is saved.
+     * @throws IOException If the file exists but cannot be read.
+     */
+    public KeywordIndex(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Get the index of the KB folder, opened on first use and brought up to
+     * date with the blocks on disk.
+     *
+     * @return The index.
+     */
+    public static synchronized KeywordIndex getDefault() {
+        if (null == defaultIndex) {
+            try {
+                defaultIndex = new KeywordIndex(INDEX_FILE);
+            } catch (IOException ex) {
+                Logger.getLogger(KeywordIndex.class.getName()).log(Level.WARNING, "Rebuilding " + INDEX_FILE, ex);
+                defaultIndex = new KeywordIndex();
+            }
+            defaultIndex.update(KnowledgeBaseSystem.getAllKnown(false));
+        }
+        return defaultIndex;
+    }
+
+    /**
+     * @return The index of the KB folder if it is in use, else null.
+     */
+    static synchronized KeywordIndex getLoaded() {
+        return defaultIndex;
+    }
+
+    private KeywordIndex() {
+        this.file = INDEX_FILE;
+    }
+
+    /**
+     * Split text into lower case words of letters and digits, two to
+     * {@link #MAX_TOKEN} characters long.
+     *
+     * @param text The text, may be null.
+     * @return The words, in order.
+     */
+    public static List<String> tokens(String text) {
+        List<String> ret = new ArrayList<>();
+        if (null == text) {
+            return ret;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            if (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                if (i - start > 1 && i - start <= MAX_TOKEN) {
+                    ret.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Add or replace a block, and save the index in the background.
+     *
+     * @param name Name (file) of the block.
+     * @param kb The block.
+     */
+    public void put(String name, KnowledgeBaseSystem.KnowledgeBlock kb) {
+        synchronized (this) {
+            index(name, kb);
+        }
+        saveLater();
+    }
+
+    /**
+     * Remove a block, and save the index in the background.
+     *
+     * @param name Name (file) of the block.
+     */
+    public void remove(String name) {
+        synchronized (this) {
+            unindex(name);
+        }
+        saveLater();
+    }
+
+    /**
+     * Index the blocks that are new or changed and drop the ones that are
+     * gone.
+     *
+     * @param blocks All blocks, by name.
+     * @return How many were added, replaced or removed.
+     */
+    public int update(Map<String, KnowledgeBaseSystem.KnowledgeBlock> blocks) {
+        int ret = 0;
+        synchronized (this) {
+            for (Map.Entry<String, KnowledgeBaseSystem.KnowledgeBlock> e : blocks.entrySet()) {
+                Integer id = ids.get(e.getKey());
+                if (null == id || !digests.get(id).equals(digest(e.getValue()))) {
+                    index(e.getKey(), e.getValue());
+                    ret++;
+                }
+            }
+            for (String name : new ArrayList<>(ids.keySet())) {
+                if (!blocks.containsKey(name)) {
+                    unindex(name);
+                    ret++;
+                }
+            }
+        }
+        if (ret > 0) {
+            saveLater();
+        }
+        return ret;
+    }
+
+    /**
+     * What the block's index entry depends on. Not its lastMod: that comes
+     * from the JSON and stays the same when the file is edited by hand.
+     */
+    private static String digest(KnowledgeBaseSystem.KnowledgeBlock kb) {
+        MessageDigest md = RequestKey.sha256();
+        md.update(String.valueOf(kb.title).getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(String.valueOf(kb.content).getBytes(StandardCharsets.UTF_8));
+        if (null != kb.keywords) {
+            for (String kw : kb.keywords) {
+                md.update((byte) 0);
+                md.update(String.valueOf(kw).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return RequestKey.hex(md.digest());
+    }
+
+    private void index(String name, KnowledgeBaseSystem.KnowledgeBlock kb) {
+        unindex(name);
+        HashMap<String, float[]> tf = new HashMap<>();
+        float length = count(tf, tokens(kb.title), TITLE_WEIGHT)
+                + count(tf, tokens(kb.content), 1);
+        if (null != kb.keywords) {
+            for (String kw : kb.keywords) {
+                length += count(tf, tokens(kw), KEYWORD_WEIGHT);
+            }
+        }
+        int id = newId();
+        names.set(id, name);
+        digests.set(id, digest(kb));
+        terms.set(id, tf.keySet().toArray(new String[tf.size()]));
+        lengths[id] = length;
+        totalLength += length;
+        ids.put(name, id);
+        for (Map.Entry<String, float[]> e : tf.entrySet()) {
+            Postings p = postings.get(e.getKey());
+            if (null == p) {
+                p = new Postings();
+                postings.put(e.getKey(), p);
+            }
+            p.add(id, e.getValue()[0]);
+        }
+    }
+
+    private static float count(HashMap<String, float[]> tf, List<String> words, int weight) {
+        for (String w : words) {
+            float[] f = tf.get(w);
+            if (null == f) {
+                tf.put(w, new float[]{weight});
+            } else {
+                f[0] += weight;
+            }
+        }
+        return words.size() * weight;
+    }
+
+    private int newId() {
+        if (!free.isEmpty()) {
+            return free.remove(free.size() - 1);
+        }
+        int id = names.size();
+        names.add(null);
+        digests.add("");
+        terms.add(null);
+        if (id == lengths.length) {
+            lengths = Arrays.copyOf(lengths, id * 2);
+        }
+        return id;
+    }
+
+    private void unindex(String name) {
+        Integer id = ids.remove(name);
+        if (null == id) {
+            return;
+        }
+        for (String t : terms.get(id)) {
+            Postings p = postings.get(t);
+            p.remove(id);
+            if (0 == p.size) {
+                postings.remove(t);
+            }
+        }
+        totalLength -= lengths[id];
+        names.set(id, null);
+        terms.set(id, null);
+        lengths[id] = 0;
+        free.add(id);
+    }
+
+    /**
+     * Find the blocks that best match a query.
+     *
+     * @param query Words to look for.
+     * @param k How many to return.
+     * @return At most k block names with their BM25 score, best first.
+     */
+    public synchronized LinkedHashMap<String, Double> search(String query, int k) {
+        LinkedHashMap<String, Double> ret = new LinkedHashMap<>();
+        int n = ids.size();
+        if (0 == n || k <= 0) {
+            return ret;
+        }
+        double avg = totalLength / n;
+        float[] scores = new float[names.size()];
+        ArrayList<Integer> touched = new ArrayList<>();
+        for (String t : new HashSet<>(tokens(query))) {
+            Postings p = postings.get(t);
+            if (null == p) {
+                continue;
+            }
+            double idf = Math.log(1 + (n - p.size + 0.5) / (p.size + 0.5));
+            for (int i = 0; i < p.size; i++) {
+                int d = p.docs[i];
+                float f = p.freqs[i];
+                if (0 == scores[d]) {
+                    touched.add(d);
+                }
+                scores[d] += idf * f * (K1 + 1) / (f + K1 * (1 - B + B * lengths[d] / avg));
+            }
+        }
+        TopK top = new TopK(Math.min(k, touched.size()));
+        for (int d : touched) {
+            top.offer(d, scores[d]);
+        }
+        // COSINE takes ranks as they are: the BM25 scores
+        for (SearchHit h : top.toHits(Metric.COSINE)) {
+            ret.put(names.get(h.row), h.score);
+        }
+        return ret;
+    }
+
+    /**
+     * @return Number of blocks indexed.
+     */
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    /**
+     * @return Number of distinct terms.
+     */
+    public synchronized int terms() {
+        return postings.size();
+    }
+
+    /**
+     * Save once the current burst of changes is over.
+     */
+    private void saveLater() {
+        if (saveQueued.compareAndSet(false, true)) {
+            worker.submit(new Runnable() {
+                @Override
+                public void run() {
+                    saveQueued.set(false);
+                    try {
+                        save();
+                    } catch (IOException ex) {
+                        Logger.getLogger(KeywordIndex.class.getName()).log(Level.WARNING, "Could not save " + file, ex);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Write the index, replacing the file atomically.
+     *
+     * @throws IOException If writing fails.
+     */
+    public synchronized void save() throws IOException {
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(names.size());
+            for (int id = 0; id < names.size(); id++) {
+                String name = names.get(id);
+                out.writeUTF(null == name ? "" : name);
+                out.writeUTF(digests.get(id));
+                out.writeFloat(lengths[id]);
+            }
+            out.writeInt(postings.size());
+            for (Map.Entry<String, Postings> e : postings.entrySet()) {
+                Postings p = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeInt(p.size);
+                for (int i = 0; i < p.size; i++) {
+                    out.writeInt(p.docs[i]);
+                    out.writeFloat(p.freqs[i]);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+                throw new IOException(file + " is not a keyword index (version " + VERSION + ")");
+            }
+            int docs = in.readInt();
+            lengths = new float[Math.max(64, docs)];
+            ArrayList<ArrayList<String>> docTerms = new ArrayList<>(docs);
+            for (int id = 0; id < docs; id++) {
+                String name = in.readUTF();
+                names.add(name.isEmpty() ? null : name);
+                digests.add(in.readUTF());
+                lengths[id] = in.readFloat();
+                docTerms.add(new ArrayList<String>());
+                if (name.isEmpty()) {
+                    free.add(id);
+                } else {
+                    ids.put(name, id);
+                    totalLength += lengths[id];
+                }
+            }
+            int n = in.readInt();
+            for (int t = 0; t < n; t++) {
+                String term = in.readUTF();
+                int size = in.readInt();
+                Postings p = new Postings();
+                p.docs = new int[Math.max(4, size)];
+                p.freqs = new float[p.docs.length];
+                for (int i = 0; i < size; i++) {
+                    int d = in.readInt();
+                    p.add(d, in.readFloat());
+                    docTerms.get(d).add(term);
+                }
+                postings.put(term, p);
+            }
+            for (ArrayList<String> dt : docTerms) {
+                terms.add(dt.toArray(new String[dt.size()]));
+            }
+        }
+    }
+}
@@ -3,7 +3,21 @@ package nl.infcomtec.jllama;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JFrame;
@@ -12,7 +26,7 @@ import javax.swing.SwingWorker;
 public class KnowledgeBaseSystem {
 
     public static final File KBFolder = new File(Ollama.WORK_DIR, "KB");
-    public static final ObjectMapper mapper = Ollama.getMapper();
+    public static final ObjectMapper mapper = OllamaJson.MAPPER;
     public static final String createTitle = "Create a short title for this session.";
     public static final String createKB = "Reflecting on our specific discussion so far,"
             + " please synthesize the unique insights or conclusions we've drawn"
@@ -22,7 +36,23 @@ public class KnowledgeBaseSystem {
             + " information available in the public domain."
             + " Focus on what makes this session's content distinctive,"
             + " particularly in areas where new perspectives or insights were explored.";
-    private static final TreeMap<String, KnowledgeBlock> allKnown = new TreeMap<>();
+    /**
+     * Milliseconds to wait for more events before applying them.
+     */
+    private static final long SETTLE_MS = 50;
+    /**
+     * Ends the name of the file a block is written to before it is moved in
+     * place (which also starts with a dot).
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static volatile TreeMap<String, KnowledgeBlock> allKnown;
+    /**
+     * Held to change allKnown (copy, change, publish) and stamps.
+     */
+    private static final Object loadLock = new Object();
+    private static final HashMap<String, long[]> stamps = new HashMap<>();
+    private static Thread watcher;
+    private static KnowledgeLog log;
 
     public static class KnowledgeBlock {
 
@@ -43,7 +73,11 @@ public class KnowledgeBaseSystem {
 
         // Constructor for loading a KB from a file
         public KnowledgeBlock(String filename) throws IOException {
-            File f = new File(KBFolder, filename);
+            this(new File(KBFolder, filename));
+        }
+
+        // Constructor for loading a KB from a file anywhere
+        public KnowledgeBlock(File f) throws IOException {
             KnowledgeBlock kb = mapper.readValue(
                     f,
                     KnowledgeBlock.class);
@@ -67,42 +101,355 @@ public class KnowledgeBaseSystem {
             this.related = new String[]{};
         }
 
-        // Method to save the KB to a file
+        // Method to save the KB to a file (or the log, see KnowledgeLog)
         public void save(String filename) throws IOException {
             File f = new File(KBFolder, filename);
+            File tmp = null;
             lastMod = System.currentTimeMillis();
-            mapper.writeValue(f, this);
-            f.setLastModified(created);
+            KnowledgeLog kl = getLog();
+            if (null != kl) {
+                kl.put(filename, this);
+            } else {
+                // written aside and moved in, so nobody reads half a file
+                tmp = new File(KBFolder, "." + filename + TEMP_SUFFIX);
+                OllamaJson.PRETTY.writeValue(tmp, this);
+                tmp.setLastModified(created);
+            }
+            synchronized (loadLock) {
+                if (null != tmp) {
+                    try {
+                        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException ex) {
+                        tmp.delete();
+                        throw ex;
+                    }
+                    // before the watcher can look, so it does not read it back
+                    stamps.put(filename, stamp(f));
+                }
+                TreeMap<String, KnowledgeBlock> map = null == allKnown ? new TreeMap<String, KnowledgeBlock>() : new TreeMap<>(allKnown);
+                map.put(filename, this);
+                allKnown = map;
+            }
+            KeywordIndex.getDefault().put(filename, this);
+            KnowledgeIndex.updateLater(filename, this);
         }
     }
 
     /**
-     * Get a map of all KnowledgeBlock objects.
+     * Get a map of all KnowledgeBlock objects. The first call loads the KB
+     * folder and starts watching it, after that the map follows the folder:
+     * only files that are created, changed or deleted are read. Readers get
+     * a snapshot that is never changed (a change publishes a new map), so do
+     * not modify it either.
+     *
+     * With kbLog configured the blocks are read from the {@link KnowledgeLog}
+     * instead, the KB folder is only read to fill a new log.
      *
-     * @param reload To refresh the cache.
+     * @param reload To check every file again, in case watching is not
+     * possible here; unchanged files are not read. No effect with a log.
      * @return All that is known.
      */
     public static TreeMap<String, KnowledgeBlock> getAllKnown(boolean reload) {
+        TreeMap<String, KnowledgeBlock> snap = allKnown;
+        if (null != snap && !reload) {
+            return snap;
+        }
+        HashSet<String> changed = new HashSet<>();
+        synchronized (loadLock) {
+            if (null == allKnown && null != Ollama.config && Ollama.config.effectiveKbLog()) {
+                changed = openLog();
+            }
+            if (null == log) {
+                if (null == allKnown || reload) {
+                    changed = rescan();
+                }
+                startWatching();
+            }
+            snap = allKnown;
+        }
+        keywordsChanged(snap, changed);
+        return snap;
+    }
+
+    /**
+     * @return The log the blocks are kept in, or null if that is the KB
+     * folder.
+     */
+    private static KnowledgeLog getLog() {
+        getAllKnown(false);
+        synchronized (loadLock) {
+            return log;
+        }
+    }
+
+    /**
+     * Open the log, filled from the KB folder if it is new; under loadLock.
+     *
+     * @return The blocks read.
+     */
+    private static HashSet<String> openLog() {
+        TreeMap<String, KnowledgeBlock> map = new TreeMap<>();
+        try {
+            KnowledgeLog kl = new KnowledgeLog(KnowledgeLog.LOG_DIR, map);
+            if (kl.isEmpty() && KBFolder.exists()) {
+                int n = kl.importFolder(KBFolder, map);
+                Logger.getLogger(KnowledgeBaseSystem.class.getName()).log(Level.INFO, "Imported {0} blocks from {1}", new Object[]{n, KBFolder});
+            }
+            log = kl;
+            allKnown = map;
+            return new HashSet<>(map.keySet());
+        } catch (IOException ex) {
+            Logger.getLogger(KnowledgeBaseSystem.class.getName()).log(Level.SEVERE, "Using " + KBFolder + " instead of " + KnowledgeLog.LOG_DIR, ex);
+            return new HashSet<>();
+        }
+    }
+
+    /**
+     * @param name A file name in the KB folder.
+     * @return True if it is a block being saved, not a block.
+     */
+    static boolean isTemp(String name) {
+        return name.startsWith(".") && name.endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * @return The size and modification time of a file, to tell if it
+     * changed.
+     */
+    private static long[] stamp(File f) {
+        return new long[]{f.length(), f.lastModified()};
+    }
+
+    /**
+     * Read a file if it changed since it was read, under loadLock.
+     *
+     * @return True if the map was changed.
+     */
+    private static boolean refresh(TreeMap<String, KnowledgeBlock> map, String name) {
+        if (isTemp(name)) {
+            return false;
+        }
+        File f = new File(KBFolder, name);
+        if (!f.isFile()) {
+            stamps.remove(name);
+            return null != map.remove(name);
+        }
+        long[] st = stamp(f);
+        if (map.containsKey(name) && Arrays.equals(st, stamps.get(name))) {
+            return false;
+        }
+        try {
+            map.put(name, new KnowledgeBlock(name));
+            stamps.put(name, st);
+        } catch (IOException ex) {
+            // most likely still being written, the next event reads it again
+            Logger.getLogger(KnowledgeBaseSystem.class.getName()).log(Level.WARNING, "Cannot read " + f, ex);
+            stamps.remove(name);
+            map.remove(name);
+        }
+        return true;
+    }
+
+    /**
+     * Compare the folder with the map, under loadLock.
+     *
+     * @return The blocks that were added, changed or removed.
+     */
+    private static HashSet<String> rescan() {
         if (!KBFolder.exists()) {
             KBFolder.mkdirs();
         }
-        synchronized (allKnown) {
-            if (reload) {
-                allKnown.clear();
-                File[] kbs = KnowledgeBaseSystem.KBFolder.listFiles();
-                if (null != kbs) {
-                    for (File f : kbs) {
-                        try {
-                            KnowledgeBlock nkb = new KnowledgeBaseSystem.KnowledgeBlock(f.getName());
-                            allKnown.put(f.getName(), nkb);
-                        } catch (IOException ex) {
-                            Logger.getLogger(KnowledgeBlockFrame.class.getName()).log(Level.SEVERE, null, ex);
+        TreeMap<String, KnowledgeBlock> map = null == allKnown ? new TreeMap<String, KnowledgeBlock>() : new TreeMap<>(allKnown);
+        HashSet<String> names = new HashSet<>(map.keySet());
+        String[] files = KBFolder.list();
+        if (null != files) {
+            names.addAll(Arrays.asList(files));
+        }
+        HashSet<String> ret = new HashSet<>();
+        for (String name : names) {
+            if (refresh(map, name)) {
+                ret.add(name);
+            }
+        }
+        if (null == allKnown || !ret.isEmpty()) {
+            allKnown = map;
+        }
+        return ret;
+    }
+
+    /**
+     * Apply the changes to some files.
+     *
+     * @param names The files (names in the KB folder).
+     */
+    private static void changed(Set<String> names) {
+        TreeMap<String, KnowledgeBlock> snap;
+        HashSet<String> changed = new HashSet<>();
+        synchronized (loadLock) {
+            TreeMap<String, KnowledgeBlock> map = new TreeMap<>(allKnown);
+            for (String name : names) {
+                if (refresh(map, name)) {
+                    changed.add(name);
+                }
+            }
+            if (changed.isEmpty()) {
+                return;
+            }
+            allKnown = snap = map;
+        }
+        keywordsChanged(snap, changed);
+    }
+
+    /**
+     * Bring the keyword index up to date, if it is in use, and queue the
+     * changes for the {@link KnowledgeIndex}; called without holding loadLock
+     * as the indexes may be waiting for it.
+     */
+    private static void keywordsChanged(TreeMap<String, KnowledgeBlock> snap, Set<String> changed) {
+        KeywordIndex index = KeywordIndex.getLoaded();
+        for (String name : changed) {
+            KnowledgeBlock kb = snap.get(name);
+            if (null != index) {
+                if (null == kb) {
+                    index.remove(name);
+                } else {
+                    index.put(name, kb);
+                }
+            }
+            KnowledgeIndex.updateLater(name, kb);
+        }
+    }
+
+    /**
+     * Start the thread that follows the KB folder, under loadLock.
+     */
+    private static void startWatching() {
+        if (null != watcher) {
+            return;
+        }
+        final WatchService ws;
+        try {
+            ws = FileSystems.getDefault().newWatchService();
+            KBFolder.toPath().register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException ex) {
+            Logger.getLogger(KnowledgeBaseSystem.class.getName()).log(Level.WARNING, "Not watching " + KBFolder, ex);
+            return;
+        }
+        watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        WatchKey key = ws.take();
+                        HashSet<String> names = new HashSet<>();
+                        boolean overflow = false;
+                        // a save is several events, take them together
+                        while (null != key) {
+                            for (WatchEvent<?> ev : key.pollEvents()) {
+                                if (StandardWatchEventKinds.OVERFLOW == ev.kind()) {
+                                    overflow = true;
+                                } else {
+                                    names.add(ev.context().toString());
+                                }
+                            }
+                            if (!key.reset()) {
+                                Logger.getLogger(KnowledgeBaseSystem.class.getName()).log(Level.WARNING, "Stopped watching {0}", KBFolder);
+                                return;
+                            }
+                            key = ws.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+                        }
+                        if (overflow) {
+                            getAllKnown(true);
+                        } else {
+                            changed(names);
                         }
                     }
+                } catch (InterruptedException ex) {
+                    // done
                 }
             }
-            return allKnown;
+        }, "KBWatcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Delete a knowledge block, from the {@link KnowledgeLog} if there is
+     * one, else from the KB folder; the indexes follow.
+     *
+     * @param filename Name of the block.
+     * @throws IOException If it could not be deleted.
+     */
+    public static void delete(String filename) throws IOException {
+        KnowledgeLog kl = getLog();
+        if (null != kl) {
+            kl.delete(filename);
+        } else {
+            Files.deleteIfExists(new File(KBFolder, filename).toPath());
+        }
+        TreeMap<String, KnowledgeBlock> snap;
+        synchronized (loadLock) {
+            stamps.remove(filename);
+            if (!allKnown.containsKey(filename)) {
+                // the watcher was first
+                return;
+            }
+            TreeMap<String, KnowledgeBlock> map = new TreeMap<>(allKnown);
+            map.remove(filename);
+            allKnown = snap = map;
+        }
+        keywordsChanged(snap, Collections.singleton(filename));
+    }
+
+    /**
+     * Find the knowledge blocks closest in meaning to a query. The first call
+     * brings the {@link KnowledgeIndex} up to date with all blocks (saved
+     * before it existed, or changed by hand since), after that saves and the
+     * folder watcher keep it so.
+     *
+     * @param query What to look for.
+     * @param k How many blocks to return at most.
+     * @return Blocks by file name, most relevant first.
+     * @throws Exception If there is no index or embedding fails.
+     */
+    public static LinkedHashMap<String, KnowledgeBlock> findRelevant(String query, int k) throws Exception {
+        KnowledgeIndex index = KnowledgeIndex.getDefault();
+        if (null == index) {
+            throw new IllegalStateException("No knowledge index, call Ollama.init() first");
+        }
+        index.catchUp();
+        TreeMap<String, KnowledgeBlock> all = getAllKnown(false);
+        LinkedHashMap<String, KnowledgeBlock> ret = new LinkedHashMap<>();
+        for (String name : index.find(query, k)) {
+            KnowledgeBlock kb = all.get(name);
+            // skip blocks whose file is gone
+            if (null != kb) {
+                ret.put(name, kb);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Find the knowledge blocks that contain the words of a query, best
+     * match first, see {@link KeywordIndex}.
+     *
+     * @param query Words to look for.
+     * @param k How many blocks to return at most.
+     * @return Blocks by file name, best match first.
+     */
+    public static LinkedHashMap<String, KnowledgeBlock> findKeywords(String query, int k) {
+        LinkedHashMap<String, Double> found = KeywordIndex.getDefault().search(query, k);
+        TreeMap<String, KnowledgeBlock> all = getAllKnown(false);
+        LinkedHashMap<String, KnowledgeBlock> ret = new LinkedHashMap<>();
+        for (String name : found.keySet()) {
+            KnowledgeBlock kb = all.get(name);
+            if (null != kb) {
+                ret.put(name, kb);
+            }
         }
+        return ret;
     }
 
     public static void createAndShowKBFrame(final JFrame parentFrame, final OllamaClient client) {
@@ -67,7 +67,7 @@ public class KnowledgeBlockFrame extends JFrame {
      * @return The panel.
      */
     private JPanel createTopPanel() {
-        ak = KnowledgeBaseSystem.getAllKnown(true);
+        ak = KnowledgeBaseSystem.getAllKnown(false);
         JPanel panel = new JPanel(new GridLayout(1, 2));
         Box kwBox = Box.createVerticalBox();
         kwBox.setBorder(new ABorder("Keywords"));
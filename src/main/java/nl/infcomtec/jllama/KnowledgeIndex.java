@@ -0,0 +1,372 @@
+package nl.infcomtec.jllama;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Semantic index of the knowledge blocks: the title and content of every
+ * block are embedded and the vectors kept in a {@link VectorStore}, searched
+ * through an {@link HnswIndex} with the same ids.
+ *
+ * A block that is saved again gets a new vector; the older one stays in the
+ * (append-only) store but is skipped by searches. The graph is saved now and
+ * then; on open the vectors appended since are added to it again, so a crash
+ * costs some inserts, never the index. The files are in {@link #INDEX_DIR},
+ * next to (not in) the KB folder, one set per embedding model.
+ *
+ * @author walter
+ */
+public class KnowledgeIndex {
+
+    public static final File INDEX_DIR = new File(Ollama.WORK_DIR, "KBIndex");
+    /**
+     * Unsaved graph inserts that trigger a save of the graph.
+     */
+    private static final int SAVE_AFTER = 1000;
+    /**
+     * Search width; wider than the graph default, a query costs far less than
+     * embedding it and a missed block is what users notice.
+     */
+    private static final int EF_SEARCH = 200;
+    private static final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "KnowledgeIndex");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private static KnowledgeIndex defaultIndex;
+    public final String model;
+    private final File vectorFile;
+    private final File graphFile;
+    private VectorStore store;
+    private HnswIndex graph;
+    private int graphSaved;
+    /**
+     * Block (file name) of every id, and the latest id and text digest per
+     * block.
+     */
+    private final ArrayList<String> names = new ArrayList<>();
+    private final HashMap<String, Integer> latest = new HashMap<>();
+    private final HashMap<String, String> indexed = new HashMap<>();
+    /**
+     * The catch-up with all blocks, once done the index follows the changes
+     * passed to {@link #updateLater}.
+     */
+    private Future<Integer> caughtUp;
+    private boolean synced;
+
+    /**
+     * Open (or prepare) the index of one model.
+     *
+     * @param dir Where the files are.
+     * @param model The embedding model.
+     * @throws IOException If the files exist but cannot be read.
+     */
+    public KnowledgeIndex(File dir, String model) throws IOException {
+        this.model = model;
+        String base = model.replaceAll("[^A-Za-z0-9._-]", "_");
+        this.vectorFile = new File(dir, base + ".vec");
+        this.graphFile = new File(dir, base + ".hnsw");
+        if (vectorFile.exists()) {
+            store = VectorStore.open(vectorFile);
+            for (int id = 0; id < store.size(); id++) {
+                String m = store.metadata(id);
+                int tab = m.indexOf('\t');
+                String name = m.substring(tab + 1);
+                names.add(name);
+                latest.put(name, id);
+                indexed.put(name, m.substring(0, tab));
+            }
+            openGraph();
+        }
+    }
+
+    /**
+     * Load the saved graph and add what the store has beyond it, or build it
+     * anew if there is none that fits.
+     */
+    private void openGraph() {
+        if (graphFile.exists()) {
+            try {
+                HnswIndex g = HnswIndex.load(graphFile);
+                if (g.dim == store.dim && g.size() <= store.size()) {
+                    graph = g;
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(KnowledgeIndex.class.getName()).log(Level.WARNING, "Rebuilding " + graphFile, ex);
+            }
+        }
+        if (null == graph) {
+            graph = new HnswIndex(model, store.dim, Metric.COSINE);
+        }
+        graph.setEfSearch(EF_SEARCH);
+        graphSaved = graph.size();
+        for (int id = graph.size(); id < store.size(); id++) {
+            graph.add(store.get(id));
+        }
+    }
+
+    /**
+     * Get the index of the configured KB embedding model, opened on first
+     * use.
+     *
+     * @return The index, or null if there is no configuration or it cannot
+     * be opened.
+     */
+    public static synchronized KnowledgeIndex getDefault() {
+        if (null == defaultIndex && null != Ollama.config) {
+            try {
+                defaultIndex = new KnowledgeIndex(INDEX_DIR, Ollama.config.effectiveKbEmbedModel());
+            } catch (IOException ex) {
+                Logger.getLogger(KnowledgeIndex.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return defaultIndex;
+    }
+
+    /**
+     * Index a block in the background, as it is saved or changed on disk.
+     * Nothing to do before the index caught up, that reads all blocks
+     * anyway.
+     *
+     * @param filename Name of the block.
+     * @param kb The block, null if it was deleted.
+     */
+    public static void updateLater(final String filename, final KnowledgeBaseSystem.KnowledgeBlock kb) {
+        worker.submit(new Runnable() {
+            @Override
+            public void run() {
+                KnowledgeIndex index;
+                synchronized (KnowledgeIndex.class) {
+                    index = defaultIndex;
+                }
+                if (null != index && index.isSynced()) {
+                    try {
+                        if (null == kb) {
+                            index.remove(filename);
+                        } else {
+                            HashMap<String, KnowledgeBaseSystem.KnowledgeBlock> one = new HashMap<>();
+                            one.put(filename, kb);
+                            index.update(one);
+                        }
+                    } catch (Exception ex) {
+                        Logger.getLogger(KnowledgeIndex.class.getName()).log(Level.WARNING, "Could not index " + filename, ex);
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Bring the index up to date with all blocks, once after it is opened;
+     * it runs on the worker, so changes queued by {@link #updateLater} are
+     * applied after it, in order. Callers wait until it is done.
+     *
+     * @throws Exception If embedding or writing fails; the next call tries
+     * again.
+     */
+    public void catchUp() throws Exception {
+        Future<Integer> f;
+        synchronized (this) {
+            if (null == caughtUp) {
+                caughtUp = worker.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return sync(KnowledgeBaseSystem.getAllKnown(false));
+                    }
+                });
+            }
+            f = caughtUp;
+        }
+        try {
+            f.get();
+        } catch (ExecutionException ex) {
+            synchronized (this) {
+                if (caughtUp == f) {
+                    caughtUp = null;
+                }
+            }
+            Throwable t = ex.getCause();
+            throw t instanceof Exception ? (Exception) t : ex;
+        }
+    }
+
+    /**
+     * Index what is new or changed and forget the blocks that are gone.
+     *
+     * @param all All blocks, by name.
+     * @return How many were (re)indexed or forgotten.
+     */
+    private int sync(Map<String, KnowledgeBaseSystem.KnowledgeBlock> all) throws Exception {
+        int ret = update(all);
+        synchronized (this) {
+            for (String name : new ArrayList<>(latest.keySet())) {
+                if (!all.containsKey(name)) {
+                    remove(name);
+                    ret++;
+                }
+            }
+            synced = true;
+        }
+        return ret;
+    }
+
+    /**
+     * Forget a block; its vectors stay in the store, unused, and are dropped
+     * again by the catch-up after the next open.
+     *
+     * @param name Name of the block.
+     */
+    public synchronized void remove(String name) {
+        latest.remove(name);
+        indexed.remove(name);
+    }
+
+    /**
+     * The text that is embedded for a block.
+     */
+    private static String text(KnowledgeBaseSystem.KnowledgeBlock kb) {
+        return (null == kb.title ? "" : kb.title) + "\n\n" + (null == kb.content ? "" : kb.content);
+    }
+
+    /**
+     * Decides whether a block needs embedding again; its lastMod cannot, as
+     * that stays the same when the file is edited by hand. Vectors stored
+     * with a lastMod in its place are embedded once more.
+     */
+    private static String digest(String text) {
+        return RequestKey.hex(RequestKey.sha256().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Embed the blocks that are not indexed yet or changed since, in batches.
+     *
+     * @param blocks Blocks by name.
+     * @return How many were (re)indexed.
+     * @throws Exception If embedding or writing fails.
+     */
+    public int update(Map<String, KnowledgeBaseSystem.KnowledgeBlock> blocks) throws Exception {
+        List<String> todo = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        List<String> digests = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<String, KnowledgeBaseSystem.KnowledgeBlock> e : blocks.entrySet()) {
+                String text = text(e.getValue());
+                String digest = digest(text);
+                if (!digest.equals(indexed.get(e.getKey()))) {
+                    todo.add(e.getKey());
+                    texts.add(text);
+                    digests.add(digest);
+                }
+            }
+        }
+        if (todo.isEmpty()) {
+            return 0;
+        }
+        EmbeddingMatrix vectors = new OllamaEmbeddings(Ollama.config.lastEndpoint, model).getEmbeddings(texts);
+        synchronized (this) {
+            if (null == store) {
+                store = VectorStore.open(vectorFile, model, vectors.dim);
+                graph = new HnswIndex(model, vectors.dim, Metric.COSINE);
+                graph.setEfSearch(EF_SEARCH);
+            }
+            for (int i = 0; i < todo.size(); i++) {
+                String name = todo.get(i);
+                float[] v = vectors.row(i);
+                int id = store.append(v, digests.get(i) + "\t" + name);
+                graph.add(v);
+                names.add(name);
+                latest.put(name, id);
+                indexed.put(name, digests.get(i));
+            }
+            store.flush();
+            if (graph.size() - graphSaved >= SAVE_AFTER) {
+                saveGraph();
+            }
+        }
+        return todo.size();
+    }
+
+    private void saveGraph() throws IOException {
+        graph.save(graphFile);
+        graphSaved = graph.size();
+    }
+
+    /**
+     * Save the graph if it has unsaved inserts.
+     *
+     * @throws IOException If writing fails.
+     */
+    public synchronized void flush() throws IOException {
+        if (null != graph && graph.size() > graphSaved) {
+            saveGraph();
+        }
+    }
+
+    /**
+     * @return Number of blocks indexed.
+     */
+    public synchronized int size() {
+        return latest.size();
+    }
+
+    /**
+     * Find the blocks closest in meaning to a query.
+     *
+     * @param query The text to look for.
+     * @param k How many to return.
+     * @return Names of at most k blocks, most relevant first.
+     * @throws Exception If the query cannot be embedded.
+     */
+    public List<String> find(String query, int k) throws Exception {
+        List<String> ret = new ArrayList<>();
+        HnswIndex g;
+        synchronized (this) {
+            g = graph;
+        }
+        if (null == g || k <= 0) {
+            return ret;
+        }
+        float[] q = new OllamaEmbeddings(Ollama.config.lastEndpoint, model).getEmbeddings(query).response.embedding;
+        // older versions of a block are in the graph too, ask for more until
+        // k current ones are found
+        for (int want = 2 * k; ; want *= 4) {
+            List<SearchHit> hits = g.search(q, want);
+            ret.clear();
+            synchronized (this) {
+                for (SearchHit h : hits) {
+                    String name = names.get(h.row);
+                    Integer current = latest.get(name);
+                    if (null != current && h.row == current) {
+                        ret.add(name);
+                        if (ret.size() == k) {
+                            return ret;
+                        }
+                    }
+                }
+            }
+            if (hits.size() < want) {
+                return ret;
+            }
+        }
+    }
+}
@@ -0,0 +1,541 @@
+package nl.infcomtec.jllama;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * The knowledge base as a log instead of a JSON file per block: every save
+ * or delete is a record appended to the current segment file and synced to
+ * disk, so a crash loses at most the record being written (it is cut off on
+ * open, like a bad checksum).
+ * <pre>
+ * segment: int magic, int version, record...   (kb-000001.log, ...)
+ * record:  int length, int crc32, payload       (big endian)
+ * payload: byte type, utf name, compact JSON    (JSON only for a save)
+ * </pre>
+ * A segment is closed at {@link #SEGMENT_SIZE} and a new one started. In
+ * memory is only the offset of the latest record per block. A closed
+ * segment that is mostly superseded records is compacted in the
+ * background: its live records are copied to the current segment, then it
+ * is deleted. Opening reads every segment once, in order, later records
+ * winning.
+ *
+ * @author walter
+ */
+public class KnowledgeLog implements Closeable {
+
+    public static final File LOG_DIR = new File(Ollama.WORK_DIR, "KBLog");
+    public static final long SEGMENT_SIZE = 16L << 20;
+    /**
+     * A closed segment with less than this fraction of live bytes is
+     * compacted.
+     */
+    public static final double COMPACT_BELOW = 0.5;
+    private static final int MAGIC = 0x4A4C4B4C; // "JLKL"
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final int RECORD_HEADER = 8;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final Pattern SEGMENT = Pattern.compile("kb-(\\d{6})\\.log");
+    private static final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "KnowledgeLog");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final File dir;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+    /**
+     * Where the latest record of every block is, and of every delete that
+     * may still hide an older record.
+     */
+    private final HashMap<String, Location> index = new HashMap<>();
+    private final HashMap<String, Location> deletes = new HashMap<>();
+    private final AtomicBoolean compactQueued = new AtomicBoolean();
+
+    private static final class Segment {
+
+        final int number;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        long size;
+        /**
+         * Bytes of records that are still the latest.
+         */
+        long live;
+
+        Segment(File dir, int number) throws IOException {
+            this.number = number;
+            this.file = new File(dir, String.format("kb-%06d.log", number));
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.size = channel.size();
+        }
+    }
+
+    private static final class Location {
+
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Open (or create) a log.
+     *
+     * @param dir The folder with the segments.
+     * @param into Where to put the blocks read, may be null.
+     * @throws IOException If a segment cannot be read or is not part of a
+     * log.
+     */
+    public KnowledgeLog(File dir, Map<String, KnowledgeBaseSystem.KnowledgeBlock> into) throws IOException {
+        this.dir = dir;
+        dir.mkdirs();
+        String[] files = dir.list();
+        TreeMap<Integer, File> found = new TreeMap<>();
+        if (null != files) {
+            for (String f : files) {
+                Matcher m = SEGMENT.matcher(f);
+                if (m.matches()) {
+                    found.put(Integer.parseInt(m.group(1)), new File(dir, f));
+                }
+            }
+        }
+        for (int n : found.keySet()) {
+            Segment s = new Segment(dir, n);
+            segments.put(n, s);
+            scan(s, into);
+        }
+        if (segments.isEmpty()) {
+            startSegment(1);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        compactLater();
+    }
+
+    /**
+     * @return True if there are no segments with records, as when just
+     * created.
+     */
+    public synchronized boolean isEmpty() {
+        return index.isEmpty() && deletes.isEmpty();
+    }
+
+    private void startSegment(int number) throws IOException {
+        Segment s = new Segment(dir, number);
+        header(s);
+        segments.put(number, s);
+        active = s;
+    }
+
+    private static void header(Segment s) throws IOException {
+        ByteBuffer hdr = ByteBuffer.allocate(HEADER);
+        hdr.putInt(MAGIC).putInt(VERSION).flip();
+        s.channel.write(hdr, 0);
+        s.channel.truncate(HEADER);
+        s.size = HEADER;
+    }
+
+    /**
+     * Read a segment, record by record, dropping from a torn or damaged
+     * record on.
+     */
+    private void scan(Segment s, Map<String, KnowledgeBaseSystem.KnowledgeBlock> into) throws IOException {
+        if (s.size < HEADER) {
+            // created just before a crash
+            header(s);
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) s.size);
+        while (buf.hasRemaining() && s.channel.read(buf, buf.position()) > 0) {
+            // read it all
+        }
+        buf.flip();
+        if (buf.remaining() < HEADER || MAGIC != buf.getInt() || VERSION != buf.getInt()) {
+            throw new IOException(s.file + " is not a knowledge log segment (version " + VERSION + ")");
+        }
+        byte[] data = buf.array();
+        CRC32 crc = new CRC32();
+        int pos = HEADER;
+        while (pos + RECORD_HEADER <= data.length) {
+            int len = buf.getInt(pos);
+            int sum = buf.getInt(pos + 4);
+            if (len <= 0 || len > data.length - pos - RECORD_HEADER) {
+                break;
+            }
+            crc.reset();
+            crc.update(data, pos + RECORD_HEADER, len);
+            if ((int) crc.getValue() != sum) {
+                break;
+            }
+            int p = pos + RECORD_HEADER;
+            byte type = data[p];
+            int nameLen = buf.getShort(p + 1) & 0xFFFF;
+            String name = new String(data, p + 3, nameLen, StandardCharsets.UTF_8);
+            Location loc = new Location(s.number, pos, len);
+            if (PUT == type) {
+                if (null != into) {
+                    int json = p + 3 + nameLen;
+                    into.put(name, KnowledgeBaseSystem.mapper.readValue(data, json, len - 3 - nameLen, KnowledgeBaseSystem.KnowledgeBlock.class));
+                }
+                latest(name, loc);
+            } else {
+                if (null != into) {
+                    into.remove(name);
+                }
+                deleted(name, loc);
+            }
+            pos += RECORD_HEADER + len;
+        }
+        if (pos < data.length) {
+            Logger.getLogger(KnowledgeLog.class.getName()).log(Level.WARNING, "Dropping damaged records from {0} of {1}", new Object[]{pos, s.file});
+            s.channel.truncate(pos);
+            s.size = pos;
+        }
+    }
+
+    /**
+     * Account for a new latest record of a block.
+     */
+    private void latest(String name, Location loc) {
+        superseded(index.put(name, loc));
+        superseded(deletes.remove(name));
+        segments.get(loc.segment).live += RECORD_HEADER + loc.length;
+    }
+
+    private void deleted(String name, Location loc) {
+        superseded(index.remove(name));
+        superseded(deletes.put(name, loc));
+        segments.get(loc.segment).live += RECORD_HEADER + loc.length;
+    }
+
+    private void superseded(Location old) {
+        if (null != old) {
+            Segment s = segments.get(old.segment);
+            if (null != s) {
+                s.live -= RECORD_HEADER + old.length;
+            }
+        }
+    }
+
+    private static byte[] payload(byte type, String name, byte[] json) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(3 + name.length() + (null == json ? 0 : json.length));
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeByte(type);
+            byte[] n = name.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(n.length);
+            out.write(n);
+            if (null != json) {
+                out.write(json);
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Append a whole record to the active segment, starting a new one if it
+     * is full.
+     */
+    private Location append(ByteBuffer record, boolean sync) throws IOException {
+        int len = record.remaining() - RECORD_HEADER;
+        if (active.size + record.remaining() > SEGMENT_SIZE && active.size > HEADER) {
+            active.channel.force(true);
+            startSegment(active.number + 1);
+        }
+        long at = active.size;
+        while (record.hasRemaining()) {
+            active.channel.write(record, at + record.position());
+        }
+        active.size = at + RECORD_HEADER + len;
+        if (sync) {
+            active.channel.force(false);
+        }
+        return new Location(active.number, at, len);
+    }
+
+    private Location append(byte[] payload, boolean sync) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer rec = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+        rec.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        return append(rec, sync);
+    }
+
+    /**
+     * Save a block, on disk when this returns.
+     *
+     * @param name Name of the block.
+     * @param kb The block.
+     * @throws IOException If writing fails.
+     */
+    public void put(String name, KnowledgeBaseSystem.KnowledgeBlock kb) throws IOException {
+        put(name, kb, true);
+    }
+
+    private void put(String name, KnowledgeBaseSystem.KnowledgeBlock kb, boolean sync) throws IOException {
+        byte[] p = payload(PUT, name, KnowledgeBaseSystem.mapper.writeValueAsBytes(kb));
+        synchronized (this) {
+            latest(name, append(p, sync));
+        }
+        compactLater();
+    }
+
+    /**
+     * Delete a block, on disk when this returns.
+     *
+     * @param name Name of the block.
+     * @throws IOException If writing fails.
+     */
+    public void delete(String name) throws IOException {
+        byte[] p = payload(DELETE, name, null);
+        synchronized (this) {
+            if (!index.containsKey(name)) {
+                return;
+            }
+            deleted(name, append(p, true));
+        }
+        compactLater();
+    }
+
+    /**
+     * Read a block from disk.
+     *
+     * @param name Name of the block.
+     * @return The block, or null if there is none.
+     * @throws IOException If reading fails.
+     */
+    public KnowledgeBaseSystem.KnowledgeBlock get(String name) throws IOException {
+        byte[] p;
+        synchronized (this) {
+            Location loc = index.get(name);
+            if (null == loc) {
+                return null;
+            }
+            p = read(loc).array();
+        }
+        int json = RECORD_HEADER + 3 + (ByteBuffer.wrap(p).getShort(RECORD_HEADER + 1) & 0xFFFF);
+        return KnowledgeBaseSystem.mapper.readValue(p, json, p.length - json, KnowledgeBaseSystem.KnowledgeBlock.class);
+    }
+
+    /**
+     * Read a whole record, header included.
+     */
+    private ByteBuffer read(Location loc) throws IOException {
+        FileChannel ch = segments.get(loc.segment).channel;
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER + loc.length);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, loc.offset + buf.position()) < 0) {
+                throw new IOException("Record cut short in segment " + loc.segment);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * @return The names of the blocks, in order.
+     */
+    public synchronized ArrayList<String> names() {
+        return new ArrayList<>(new TreeMap<>(index).keySet());
+    }
+
+    /**
+     * @return Number of blocks.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return Number of segment files.
+     */
+    public synchronized int segments() {
+        return segments.size();
+    }
+
+    /**
+     * Compact in the background if it looks worth it.
+     */
+    private void compactLater() {
+        synchronized (this) {
+            if (!needsCompaction()) {
+                return;
+            }
+        }
+        if (compactQueued.compareAndSet(false, true)) {
+            worker.submit(new Runnable() {
+                @Override
+                public void run() {
+                    compactQueued.set(false);
+                    try {
+                        compact();
+                    } catch (IOException ex) {
+                        Logger.getLogger(KnowledgeLog.class.getName()).log(Level.WARNING, "Compaction of " + dir + " failed", ex);
+                    }
+                }
+            });
+        }
+    }
+
+    private static boolean sparse(Segment s) {
+        return s.live < COMPACT_BELOW * (s.size - HEADER);
+    }
+
+    private boolean needsCompaction() {
+        for (Segment s : segments.values()) {
+            if (s != active && sparse(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy the live records of sparse closed segments to the active segment
+     * and delete those segments. Deletes are copied too, unless no older
+     * segment is left for them to hide records in. A crash halfway leaves
+     * both copies, of which the newer wins on open.
+     *
+     * @return Number of segments removed.
+     * @throws IOException If copying fails.
+     */
+    public synchronized int compact() throws IOException {
+        int ret = 0;
+        for (Segment s : new ArrayList<>(segments.values())) {
+            if (s == active || !sparse(s)) {
+                continue;
+            }
+            boolean oldest = s.number == segments.firstKey();
+            for (Map.Entry<String, Location> e : new ArrayList<>(index.entrySet())) {
+                if (e.getValue().segment == s.number) {
+                    latest(e.getKey(), append(read(e.getValue()), false));
+                }
+            }
+            for (Map.Entry<String, Location> e : new ArrayList<>(deletes.entrySet())) {
+                if (e.getValue().segment == s.number) {
+                    if (oldest) {
+                        deletes.remove(e.getKey());
+                    } else {
+                        deleted(e.getKey(), append(read(e.getValue()), false));
+                    }
+                }
+            }
+            active.channel.force(false);
+            segments.remove(s.number);
+            s.raf.close();
+            if (!s.file.delete()) {
+                throw new IOException("Cannot delete " + s.file);
+            }
+            ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * Add the blocks of a folder of JSON files, one per block, as the KB
+     * folder holds them; synced once at the end.
+     *
+     * @param folder The folder.
+     * @param into Where to put the blocks read too, may be null.
+     * @return Number of blocks added.
+     * @throws IOException If writing fails; files that cannot be read are
+     * logged and skipped.
+     */
+    public int importFolder(File folder, Map<String, KnowledgeBaseSystem.KnowledgeBlock> into) throws IOException {
+        int ret = 0;
+        File[] files = folder.listFiles();
+        if (null != files) {
+            for (File f : files) {
+                if (!f.isFile() || KnowledgeBaseSystem.isTemp(f.getName())) {
+                    continue;
+                }
+                KnowledgeBaseSystem.KnowledgeBlock kb;
+                try {
+                    kb = new KnowledgeBaseSystem.KnowledgeBlock(f);
+                } catch (IOException ex) {
+                    Logger.getLogger(KnowledgeLog.class.getName()).log(Level.WARNING, "Not importing " + f, ex);
+                    continue;
+                }
+                put(f.getName(), kb, false);
+                if (null != into) {
+                    into.put(f.getName(), kb);
+                }
+                ret++;
+            }
+        }
+        synchronized (this) {
+            active.channel.force(false);
+        }
+        return ret;
+    }
+
+    /**
+     * Write every block as a JSON file, the way the KB folder holds them.
+     *
+     * @param folder The folder, created if needed.
+     * @return Number of blocks written.
+     * @throws IOException If reading or writing fails.
+     */
+    public int exportFolder(File folder) throws IOException {
+        folder.mkdirs();
+        int ret = 0;
+        for (String name : names()) {
+            KnowledgeBaseSystem.KnowledgeBlock kb = get(name);
+            if (null != kb) {
+                File f = new File(folder, name);
+                OllamaJson.PRETTY.writeValue(f, kb);
+                if (null != kb.created) {
+                    f.setLastModified(kb.created);
+                }
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Sync and close all segments.
+     *
+     * @throws IOException If that fails.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        active.channel.force(false);
+        for (Segment s : segments.values()) {
+            s.raf.close();
+        }
+        segments.clear();
+    }
+}
@@ -0,0 +1,44 @@
+package nl.infcomtec.jllama;
+
+/**
+ * How to compare embedding vectors.
+ *
+ * @author walter
+ */
+public enum Metric {
+    /**
+     * Cosine similarity, -1 to 1, higher is closer.
+     */
+    COSINE(false),
+    /**
+     * Euclidean distance, lower is closer.
+     */
+    L2(true),
+    /**
+     * Manhattan distance, lower is closer.
+     */
+    L1(true),
+    /**
+     * Pearson correlation, -1 to 1, higher is closer.
+     */
+    PEARSON(false);
+
+    /**
+     * True if this is a distance (lower is closer), false for a similarity.
+     */
+    public final boolean distance;
+
+    private Metric(boolean distance) {
+        this.distance = distance;
+    }
+
+    /**
+     * Turn a score into a rank where higher is always closer.
+     *
+     * @param score A value of this metric.
+     * @return The score for a similarity, minus the score for a distance.
+     */
+    public double rank(double score) {
+        return distance ? -score : score;
+    }
+}
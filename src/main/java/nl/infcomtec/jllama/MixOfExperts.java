@@ -133,7 +133,7 @@ public class MixOfExperts {
      * @throws IOException If there is an error reading the JSON file.
      */
     public static MixOfExperts fromFile(File json) throws IOException {
-        return Ollama.getMapper().readValue(json, MixOfExperts.class);
+        return OllamaJson.MAPPER.readValue(json, MixOfExperts.class);
     }
 
     /**
@@ -190,7 +190,7 @@ public class MixOfExperts {
      * @throws IOException If there is an error writing to the JSON file.
      */
     public void toFile(File json) throws IOException {
-        Ollama.getMapper().writeValue(json, this);
+        OllamaJson.PRETTY.writeValue(json, this);
     }
 
     /**
@@ -47,7 +47,7 @@ public class ModelTester {
             return;
         }
         frame.postUpdate("Starting test of model: " + frame.model.getText());
-        ObjectMapper mapper = Ollama.getMapper();
+        ObjectMapper mapper = OllamaJson.MAPPER;
         LinkedList<String> evaluations = new LinkedList<>();
         try (BufferedReader bfr = openResource("files")) {
             for (String resNam = bfr.readLine(); frame.running.get() && null != resNam; resNam = bfr.readLine()) {
@@ -87,17 +87,12 @@ public class ModelTester {
         }
         frame.postUpdate("Running test evaluation.");
         fullTest.append(NL).append("# Running test evaluation.").append(NL);
-        for (int attempts = 0; attempts < 5; attempts++) {
-            if (!frame.running.get()) {
-                break;
-            }
-            try {
-                runEvalLLM(evaluations);
-                break;
-            } catch (Exception any) {
-                eval = "## Evaluation failed: " + any.getMessage() + NL;
-                frame.postUpdate("Restarting test evaluation: " + any.getMessage());
-            }
+        try {
+            // each call is retried by the client, a failure here is final
+            runEvalLLM(evaluations);
+        } catch (Exception any) {
+            eval = "## Evaluation failed: " + any.getMessage() + NL;
+            frame.postUpdate("Test evaluation failed: " + any.getMessage());
         }
         try (FileWriter wrt = new FileWriter(frame.output)) {
             wrt.write(eval);
@@ -21,7 +21,7 @@ public class Nomic {
         Ollama.init();
         OllamaEmbeddings em = new OllamaEmbeddings(Ollama.config.lastEndpoint, model);
         Embeddings embeddings = em.getEmbeddings("Why is the sky blue?");
-        Statistics stats = new Statistics(embeddings.response.embedding);
+        Statistics stats = new Statistics(embeddings.response.asDoubles());
         System.out.println(stats);
         ImageIO.write(embeddings.toImage(480, 160, 10, 10, true), "png", new File(nd, "log.png"));
         ImageIO.write(embeddings.toImage(480, 160, 10, 10, false), "png", new File(nd, "norm.png"));
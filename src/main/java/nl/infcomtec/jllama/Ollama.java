@@ -1,23 +1,14 @@
 package nl.infcomtec.jllama;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateTimeDeserializer;
-import com.fasterxml.jackson.datatype.jsr310.ser.LocalDateTimeSerializer;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeFormatterBuilder;
-import java.time.temporal.ChronoField;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
@@ -47,15 +38,6 @@ public class Ollama {
      */
     private static final String LOCAL_ENDPOINT = "http://localhost:11434";
 
-    /**
-     * A DateTimeFormatter for formatting and parsing LocalDateTime objects.
-     */
-    private static final DateTimeFormatter formatter = new DateTimeFormatterBuilder()
-            .appendPattern("yyyy-MM-dd'T'HH:mm:ss")
-            .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true)
-            .appendPattern("XXX")
-            .toFormatter();
-
     /**
      * The configuration file for Ollama.
      */
@@ -84,6 +66,50 @@ public class Ollama {
      * Monitoring hooks.
      */
     private static final LinkedList<Monitor> monitors = new LinkedList<>();
+    /**
+     * One transport (and thus one connection pool) per endpoint.
+     */
+    private static final TreeMap<String, OllamaTransport> transports = new TreeMap<>();
+    /**
+     * Creates the transports, by default {@link HttpTransport}.
+     */
+    private static OllamaTransport.Factory transportFactory = new OllamaTransport.Factory() {
+        @Override
+        public OllamaTransport create(String endPoint) {
+            return new HttpTransport(endPoint);
+        }
+    };
+
+    /**
+     * Get the shared transport for an endpoint, creating it on first use. It
+     * is guarded by the {@link CircuitBreaker} of the endpoint.
+     *
+     * @param endPoint The endpoint, for instance "http://localhost:11434".
+     * @return The transport for that endpoint.
+     */
+    public static OllamaTransport getTransport(String endPoint) {
+        synchronized (transports) {
+            OllamaTransport ret = transports.get(endPoint);
+            if (null == ret) {
+                ret = new GuardedTransport(transportFactory.create(endPoint));
+                transports.put(endPoint, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Plug in a different transport. Transports created earlier are dropped,
+     * so this is best called before any API traffic.
+     *
+     * @param factory Creates a transport per endpoint.
+     */
+    public static void setTransportFactory(OllamaTransport.Factory factory) {
+        synchronized (transports) {
+            transportFactory = factory;
+            transports.clear();
+        }
+    }
 
     /**
      * Register a monitor.
@@ -118,6 +144,18 @@ public class Ollama {
         }
     }
 
+    /**
+     * Check if there are any monitors, so callers can skip building the data
+     * for {@link #doMonitoring(boolean, java.lang.String)} if there are not.
+     *
+     * @return true if at least one monitor is registered.
+     */
+    public static boolean isMonitored() {
+        synchronized (monitors) {
+            return !monitors.isEmpty();
+        }
+    }
+
     /**
      * Will call any registered monitors from a synchronized context.
      *
@@ -169,7 +207,7 @@ public class Ollama {
         }
         try {
             if (configFile.exists()) {
-                config = getMapper().readValue(configFile, OllamaConfig.class);
+                config = OllamaJson.MAPPER.readValue(configFile, OllamaConfig.class);
             }
             if (null == config.ollamas) {
                 config.ollamas = new String[]{LOCAL_ENDPOINT};
@@ -200,6 +238,9 @@ public class Ollama {
             System.out.println("Or edit " + configFile.getAbsolutePath() + " to fix this.");
             System.exit(2);
         }
+        if (config.effectiveHealthInterval() > 0) {
+            HealthChecker.start(config.effectiveHealthInterval());
+        }
     }
 
     /**
@@ -278,18 +319,13 @@ public class Ollama {
     }
 
     /**
-     * Get an "object-aware" version of ObjectMapper.
+     * Get an "object-aware" version of ObjectMapper, a copy of the shared one
+     * (see {@link OllamaJson}) that indents, and can be configured freely.
      *
      * @return Jackson object mapper.
      */
     public static ObjectMapper getMapper() {
-        ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
-        JavaTimeModule module = new JavaTimeModule();
-        module.addSerializer(LocalDateTime.class, new LocalDateTimeSerializer(formatter));
-        module.addDeserializer(LocalDateTime.class, new LocalDateTimeDeserializer(formatter));
-        mapper.registerModule(module);
-        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        return mapper;
+        return OllamaJson.MAPPER.copy().enable(SerializationFeature.INDENT_OUTPUT);
     }
 
     /**
@@ -304,6 +340,63 @@ public class Ollama {
         return models;
     }
 
+    /**
+     * @return True if {@link #getAvailableModels()} would not have to ask the
+     * servers.
+     */
+    public static boolean hasAvailableModels() {
+        return null != models;
+    }
+
+    /**
+     * Find the endpoints that have a model, according to the (cached)
+     * {@link #getAvailableModels()}.
+     *
+     * @param model The model name, a name without a tag means ":latest".
+     * @return The endpoints, possibly empty.
+     */
+    public static List<String> endpointsFor(String model) {
+        String tagged = model.contains(":") ? model : model + ":latest";
+        List<String> ret = new ArrayList<>();
+        if (null == config && null == models) {
+            // not initialized, nothing known
+            return ret;
+        }
+        for (Map.Entry<String, AvailableModels> e : getAvailableModels().entrySet()) {
+            for (AvailableModels.AvailableModel am : e.getValue().models) {
+                if (am.name.equals(model) || am.name.equals(tagged)) {
+                    ret.add(e.getKey());
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Look up the digest of a model on an endpoint in the (cached)
+     * {@link #getAvailableModels()}.
+     *
+     * @param endPoint The endpoint.
+     * @param model The model name, a name without a tag means ":latest".
+     * @return The digest, or null if unknown.
+     */
+    public static String modelDigest(String endPoint, String model) {
+        if (null == config && null == models) {
+            return null;
+        }
+        AvailableModels avm = getAvailableModels().get(endPoint);
+        if (null != avm && null != avm.models) {
+            String tagged = model.contains(":") ? model : model + ":latest";
+            for (AvailableModels.AvailableModel am : avm.models) {
+                if (am.name.equals(model) || am.name.equals(tagged)) {
+                    return am.digest;
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Fetch the known models.
      *
@@ -328,23 +421,8 @@ public class Ollama {
      * responding.
      */
     public static AvailableModels fetchAvailableModels(String endPoint) {
-        try {
-            URL url = new URL(endPoint + TAGS);
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("GET");
-
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(con.getInputStream(), "utf-8"))) {
-                StringBuilder response = new StringBuilder();
-                String responseLine;
-                while ((responseLine = br.readLine()) != null) {
-                    response.append(responseLine.trim());
-                }
-                return getMapper().readValue(response.toString(), AvailableModels.class);
-            } catch (Exception any) {
-                oops(any);
-            } finally {
-                con.disconnect();
-            }
+        try (InputStream is = getTransport(endPoint).get(TAGS)) {
+            return OllamaJson.AVAILABLE_MODELS.readValue(is);
         } catch (Exception ex) {
             oops(ex);
             Logger.getLogger(Ollama.class.getName()).log(Level.SEVERE, null, ex);
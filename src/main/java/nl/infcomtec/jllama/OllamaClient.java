@@ -1,18 +1,22 @@
 package nl.infcomtec.jllama;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
 import java.awt.image.RenderedImage;
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InputStream;
 import java.time.LocalDateTime;
-import java.util.Base64;
 import java.util.LinkedList;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import javax.imageio.ImageIO;
 
 /**
@@ -22,8 +26,13 @@ import javax.imageio.ImageIO;
 public class OllamaClient {
 
     private static final String GENERATE = "/api/generate";
-    private final String API_GENERATE;
+    /**
+     * Identical deterministic requests in flight share one server call.
+     */
+    private static final SingleFlight flights = new SingleFlight();
     private final String endPoint;
+    private final OllamaTransport transport;
+    private double hedgePercentile;
 
     /**
      * A TreeMap to store the model sessions, mapped by their names.
@@ -40,15 +49,50 @@ public class OllamaClient {
      * @param endPoint The endpoint for the Ollama API.
      */
     public OllamaClient(String endPoint) {
+        this(endPoint, true);
+    }
+
+    /**
+     * Constructs an OllamaClient instance with the given endpoint.
+     *
+     * @param endPoint The endpoint for the Ollama API.
+     * @param remember If true, store the endpoint as the last one used in the
+     * configuration, as any user-facing client does.
+     */
+    OllamaClient(String endPoint, boolean remember) {
         this.endPoint = endPoint;
-        if (null != Ollama.config) {
+        if (remember && null != Ollama.config) {
             if (null == Ollama.config.lastEndpoint
                     || !Ollama.config.lastEndpoint.equalsIgnoreCase(endPoint)) {
                 Ollama.config.lastEndpoint = endPoint;
                 Ollama.config.update();
             }
         }
-        API_GENERATE = endPoint + GENERATE;
+        transport = Ollama.getTransport(endPoint);
+        if (null != Ollama.config) {
+            hedgePercentile = Ollama.config.effectiveHedgePercentile();
+        }
+    }
+
+    /**
+     * Hedge context-free {@link #direct(Request)} calls: if no first token
+     * arrived by the given percentile of observed first-token latencies, also
+     * send the request to another endpoint that has the model, see
+     * {@link Hedging}.
+     *
+     * @param percentile For instance 0.95; 0 turns hedging off.
+     */
+    public void setHedging(double percentile) {
+        this.hedgePercentile = percentile;
+    }
+
+    /**
+     * Get the endpoint this client talks to.
+     *
+     * @return The endpoint for the Ollama API.
+     */
+    public String getEndPoint() {
+        return endPoint;
     }
 
     /**
@@ -67,10 +111,10 @@ public class OllamaClient {
      * @throws Exception If an error occurs during the request.
      */
     public Response direct(Request rq) throws Exception {
-        ObjectMapper mapper = Ollama.getMapper();
-        String requestBody = mapper.writeValueAsString(rq);
-        String response = sendRequest(requestBody);
-        return mapper.readValue(response, Response.class);
+        if (hedgePercentile > 0 && Hedging.isContextFree(rq)) {
+            return Hedging.direct(endPoint, rq, hedgePercentile);
+        }
+        return sendRequest(rq);
     }
 
     /**
@@ -91,6 +135,35 @@ public class OllamaClient {
         return direct(rq);
     }
 
+    /**
+     * Sends a direct request to the Ollama API without streaming and without
+     * blocking the calling thread.
+     *
+     * @param rq The Request object containing the request details.
+     * @return Completes with the Response object containing the API response.
+     */
+    public CompletableFuture<Response> directAsync(Request rq) {
+        return sendRequestAsync(rq);
+    }
+
+    /**
+     * Sends a direct request to the Ollama API without streaming and without
+     * blocking the calling thread.
+     *
+     * @param modelName The name of the model to use.
+     * @param system The system prompt.
+     * @param prompt The user prompt.
+     * @return Completes with the Response object containing the API response.
+     */
+    public CompletableFuture<Response> directAsync(String modelName, String system, String prompt) {
+        Request rq = new Request();
+        rq.model = modelName;
+        rq.prompt = prompt;
+        rq.stream = false;
+        rq.system = system;
+        return directAsync(rq);
+    }
+
     /**
      * Start a new tree if the model has no tree.
      *
@@ -170,12 +243,24 @@ public class OllamaClient {
      * @param resp The Response object containing the response details.
      */
     private void addResponse(Request rq, Response resp) {
-        LinkedList<ModelInteraction> get = getInter();
-        if (null == get) {
-            get = new LinkedList<>();
-            getSession().interactions = get;
+        addResponse(getSession(), rq, resp);
+    }
+
+    /**
+     * Add a response to a model session, which need not be the current one
+     * by the time an asynchronous request completes.
+     *
+     * @param session The session the request was made in.
+     * @param rq The Request object containing the request details.
+     * @param resp The Response object containing the response details.
+     */
+    private void addResponse(ModelSession session, Request rq, Response resp) {
+        synchronized (session) {
+            if (null == session.interactions) {
+                session.interactions = new LinkedList<>();
+            }
+            session.interactions.add(new ModelInteraction(rq, resp));
         }
-        get.add(new ModelInteraction(rq, resp));
     }
 
     /**
@@ -202,19 +287,61 @@ public class OllamaClient {
      */
     public Response askAndAnswer(String model, String prompt, RenderedImage... images) throws Exception {
         newModel(model);
-        ObjectMapper mapper = Ollama.getMapper();
         Request rq = new Request();
         rq.model = model;
         rq.prompt = prompt;
         rq.context = getContext();
         setReqImages(images, rq);
-        String requestBody = mapper.writeValueAsString(rq);
-        String response = sendRequest(requestBody);
-        Response resp = mapper.readValue(response, Response.class);
+        Response resp = sendRequest(rq);
         addResponse(rq, resp);
         return resp;
     }
 
+    /**
+     * Send a prompt to the specified model and get the response without
+     * blocking the calling thread. The interaction is added to the session of
+     * the model once the response arrives.
+     *
+     * @param model The name of the model to use.
+     * @param prompt The user prompt.
+     * @return Completes with the Response object containing the API response.
+     */
+    public CompletableFuture<Response> askAndAnswerAsync(String model, String prompt) {
+        return askAndAnswerAsync(model, prompt, (RenderedImage[]) null);
+    }
+
+    /**
+     * Send a prompt and images to the specified model and get the response
+     * without blocking the calling thread. The interaction is added to the
+     * session of the model once the response arrives.
+     *
+     * @param model The name of the model to use.
+     * @param prompt The user prompt.
+     * @param images The array of RenderedImage objects to include with the
+     * request.
+     * @return Completes with the Response object containing the API response.
+     */
+    public CompletableFuture<Response> askAndAnswerAsync(String model, String prompt, RenderedImage... images) {
+        try {
+            newModel(model);
+            final ModelSession session = getSession();
+            final Request rq = new Request();
+            rq.model = model;
+            rq.prompt = prompt;
+            rq.context = getContext();
+            setReqImages(images, rq);
+            return sendRequestAsync(rq).thenApply(new Function<Response, Response>() {
+                @Override
+                public Response apply(Response resp) {
+                    addResponse(session, rq, resp);
+                    return resp;
+                }
+            });
+        } catch (Exception any) {
+            return CompletableFuture.failedFuture(any);
+        }
+    }
+
     /**
      * Check if a dialog is in progress.
      *
@@ -240,7 +367,6 @@ public class OllamaClient {
      * @throws Exception If an error occurs during the request.
      */
     public String execute(String prompt) throws Exception {
-        ObjectMapper mapper = Ollama.getMapper();
         Request rq = new Request();
         rq.model = curModel;
         rq.prompt = prompt;
@@ -248,12 +374,33 @@ public class OllamaClient {
         if (rq.model.isEmpty() || null == rq.context || 0 == rq.context.length) {
             throw new Exception("Nothing to execute on.");
         }
-        String requestBody = mapper.writeValueAsString(rq);
-        String response = sendRequest(requestBody);
-        Response resp = mapper.readValue(response, Response.class);
+        Response resp = sendRequest(rq);
         return resp.response;
     }
 
+    /**
+     * Like {@link #execute(java.lang.String)} but without blocking the calling
+     * thread.
+     *
+     * @param prompt The user prompt.
+     * @return Completes with the answer of the model.
+     */
+    public CompletableFuture<String> executeAsync(String prompt) {
+        Request rq = new Request();
+        rq.model = curModel;
+        rq.prompt = prompt;
+        rq.context = getContext();
+        if (rq.model.isEmpty() || null == rq.context || 0 == rq.context.length) {
+            return CompletableFuture.failedFuture(new Exception("Nothing to execute on."));
+        }
+        return directAsync(rq).thenApply(new Function<Response, String>() {
+            @Override
+            public String apply(Response resp) {
+                return resp.response;
+            }
+        });
+    }
+
     /**
      * Set the image data in the Request object.
      *
@@ -268,13 +415,13 @@ public class OllamaClient {
                 try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
                     ImageIO.write(im, "png", baos);
                     baos.flush();
-                    String enc = Base64.getEncoder().encodeToString(baos.toByteArray());
+                    byte[] enc = baos.toByteArray();
                     if (null == rq.images) {
-                        rq.images = new String[1];
+                        rq.images = new byte[1][];
                         rq.images[0] = enc;
                     } else {
-                        String[] oi = rq.images;
-                        rq.images = new String[oi.length + 1];
+                        byte[][] oi = rq.images;
+                        rq.images = new byte[oi.length + 1][];
                         System.arraycopy(oi, 0, rq.images, 0, oi.length);
                         rq.images[oi.length] = enc;
                     }
@@ -316,7 +463,6 @@ public class OllamaClient {
         if (null == listener) {
             throw (new RuntimeException("Listener is null"));
         }
-        ObjectMapper mapper = Ollama.getMapper();
 
         Request rq = new Request();
         rq.model = model;
@@ -324,109 +470,380 @@ public class OllamaClient {
         rq.stream = true;
         rq.context = getContext();
         setReqImages(images, rq);
-        String requestBody = mapper.writeValueAsString(rq);
-        Response resp = sendRequestWithStreaming(requestBody, listener);
+        Response resp = sendRequestWithStreaming(rq, listener);
         addResponse(rq, resp);
         return resp;
     }
 
     /**
-     * Send a request to the Ollama API and return the response as a String.
+     * Send a prompt and images to the specified model and get the response as
+     * a reactive stream. Nothing is sent until the publisher is subscribed to;
+     * the subscriber controls the pace with its requests, see
+     * {@link ResponsePublisher}. The final item is the full Response, which is
+     * also added to the session of the model.
      *
-     * @param requestBody The request body as a String.
-     * @return The response from the API as a String.
+     * @param model The name of the model to use.
+     * @param prompt The user prompt.
+     * @param images The array of RenderedImage objects to include with the
+     * request, may be empty.
+     * @return A single-use publisher of the response parts.
+     * @throws IOException If an error occurs while encoding the image data.
+     */
+    public Flow.Publisher<StreamedResponse> askWithPublisher(String model, String prompt, RenderedImage... images) throws IOException {
+        newModel(model);
+        final ModelSession session = getSession();
+        final Request rq = new Request();
+        rq.model = model;
+        rq.prompt = prompt;
+        rq.stream = true;
+        rq.context = getContext();
+        setReqImages(images, rq);
+        return new ResponsePublisher(new ResponsePublisher.Source() {
+            @Override
+            public Response stream(StreamListener listener) throws Exception {
+                Response resp = sendRequestWithStreaming(rq, listener);
+                if (null != resp) {
+                    addResponse(session, rq, resp);
+                }
+                return resp;
+            }
+        }, ResponsePublisher.DEFAULT_BUFFER);
+    }
+
+    /**
+     * Send a request to the Ollama API and parse the response straight from
+     * the connection. A deterministic request is answered from the
+     * {@link ResponseCache} if possible, else it joins an identical one in
+     * flight, if any.
+     *
+     * @param rq The request, serialized while it is sent.
+     * @return The Response object containing the API response.
      * @throws Exception If an error occurs during the request.
      */
-    private String sendRequest(String requestBody) throws Exception {
-        Ollama.doMonitoring(true, requestBody);
-        URL url = new URL(API_GENERATE);
-        HttpURLConnection con = (HttpURLConnection) url.openConnection();
-        con.setRequestMethod("POST");
-        con.setRequestProperty("Content-Type", "application/json");
-        con.setDoOutput(true);
-
-        try (OutputStream os = con.getOutputStream()) {
-            byte[] input = requestBody.getBytes("utf-8");
-            os.write(input, 0, input.length);
+    private Response sendRequest(final Request rq) throws Exception {
+        monitorRequest(rq);
+        final String cacheKey = cacheKey(endPoint, rq);
+        if (null != cacheKey) {
+            Response hit = ResponseCache.getDefault().get(cacheKey);
+            if (null != hit) {
+                return hit;
+            }
+        }
+        RetryPolicy.Call<Response> call = new RetryPolicy.Call<Response>() {
+            @Override
+            public Response call() throws Exception {
+                Response ret = RetryPolicy.getDefault().call(new RetryPolicy.Call<Response>() {
+                    @Override
+                    public Response call() throws Exception {
+                        try (InputStream is = transport.post(GENERATE, OllamaTransport.json(rq))) {
+                            return readResponse(is);
+                        }
+                    }
+                });
+                if (null != cacheKey) {
+                    ResponseCache.getDefault().put(cacheKey, ret);
+                }
+                return ret;
+            }
+        };
+        if (RequestKey.isDeterministic(rq)) {
+            return flights.call(RequestKey.of(endPoint, rq), call);
+        }
+        return call.call();
+    }
+
+    /**
+     * Send a request to the Ollama API without blocking; the response is
+     * parsed on the thread that completes the HTTP exchange.
+     *
+     * @param rq The request, serialized while it is sent.
+     * @return Completes with the parsed response.
+     */
+    private CompletableFuture<Response> sendRequestAsync(final Request rq) {
+        try {
+            monitorRequest(rq);
+            if (!RequestKey.isDeterministic(rq) || !ResponseCache.getDefault().isEnabled() || Ollama.hasAvailableModels()) {
+                return sendRequestAsync(rq, cacheKey(endPoint, rq));
+            }
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
         }
+        // the key needs the model digest and getting that blocks, not here
+        return CompletableFuture.supplyAsync(new Supplier<String>() {
+            @Override
+            public String get() {
+                try {
+                    return cacheKey(endPoint, rq);
+                } catch (IOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }
+        }).thenCompose(new Function<String, CompletableFuture<Response>>() {
+            @Override
+            public CompletableFuture<Response> apply(String cacheKey) {
+                return sendRequestAsync(rq, cacheKey);
+            }
+        });
+    }
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(con.getInputStream(), "utf-8"))) {
-            StringBuilder response = new StringBuilder();
-            String responseLine;
-            while ((responseLine = br.readLine()) != null) {
-                response.append(responseLine.trim());
+    /**
+     * The part of {@link #sendRequestAsync(Request)} after the cache key is
+     * known.
+     *
+     * @param rq The request, serialized while it is sent.
+     * @param cacheKey The {@link ResponseCache} key, null for none.
+     * @return Completes with the parsed response.
+     */
+    private CompletableFuture<Response> sendRequestAsync(final Request rq, final String cacheKey) {
+        if (null != cacheKey) {
+            Response hit = ResponseCache.getDefault().get(cacheKey);
+            if (null != hit) {
+                return CompletableFuture.completedFuture(hit);
+            }
+        }
+        Supplier<CompletableFuture<Response>> call = new Supplier<CompletableFuture<Response>>() {
+            @Override
+            public CompletableFuture<Response> get() {
+                return RetryPolicy.getDefault().callAsync(new Supplier<CompletableFuture<Response>>() {
+                    @Override
+                    public CompletableFuture<Response> get() {
+                        return transport.postAsync(GENERATE, OllamaTransport.json(rq)).thenApply(new Function<byte[], Response>() {
+                            @Override
+                            public Response apply(byte[] body) {
+                                try {
+                                    Response resp = OllamaJson.RESPONSE.readValue(body);
+                                    checkResponse(resp);
+                                    if (null != cacheKey) {
+                                        ResponseCache.getDefault().put(cacheKey, resp);
+                                    }
+                                    return resp;
+                                } catch (IOException ex) {
+                                    throw new CompletionException(ex);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        };
+        if (RequestKey.isDeterministic(rq)) {
+            try {
+                return flights.callAsync(RequestKey.of(endPoint, rq), call);
+            } catch (IOException ex) {
+                return CompletableFuture.failedFuture(ex);
             }
-            Ollama.doMonitoring(false, response.toString());
-            return response.toString();
-        } finally {
-            con.disconnect();
         }
+        return call.get();
     }
 
     /**
      * Send a request to the Ollama API and stream the response to a
      * StreamListener.
      *
-     * @param requestBody The request body as a String.
+     * @param rq The request, serialized while it is sent.
      * @param listener The StreamListener object to receive the streamed
      * response.
      * @return The Response object containing the API response.
      * @throws Exception If an error occurs during the request.
      */
-    private Response sendRequestWithStreaming(String requestBody, StreamListener listener) throws Exception {
-        Ollama.doMonitoring(true, requestBody);
-        URL url = new URL(API_GENERATE);
-        HttpURLConnection con = (HttpURLConnection) url.openConnection();
-        con.setRequestMethod("POST");
-        con.setRequestProperty("Content-Type", "application/json");
-        con.setDoOutput(true);
-
-        try (OutputStream os = con.getOutputStream()) {
-            byte[] input = requestBody.getBytes("utf-8");
-            os.write(input, 0, input.length);
-        }
+    private Response sendRequestWithStreaming(Request rq, StreamListener listener) throws Exception {
+        return stream(transport, rq, listener);
+    }
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(con.getInputStream(), "utf-8"))) {
-            ObjectMapper mapper = Ollama.getMapper();
-            String responseLine;
-            StringBuilder fullResponse = new StringBuilder();
-            while ((responseLine = br.readLine()) != null) {
-                if (!responseLine.trim().isEmpty()) {
-                    Ollama.doMonitoring(false, responseLine);
-                    if (responseLine.startsWith("{\"error")) {
-                        Response err = new Response();
-                        err.context = new LinkedList<>();
-                        err.createdAt = LocalDateTime.now();
-                        err.done = true;
-                        err.evalCount = 0;
-                        err.evalDuration = 1;
-                        err.loadDuration = 1;
-                        err.model = "?";
-                        err.promptEvalCount = 0;
-                        err.promptEvalDuration = 1;
-                        err.sampleCount = 0;
-                        err.sampleDuration = 1;
-                        err.totalDuration = 3;
-                        err.response = responseLine;
-                        listener.onResponseReceived(err);
-                        return err;
+    /**
+     * Send a streaming request over a transport, without any session. A
+     * failure is only retried while nothing was passed to the listener. A
+     * deterministic request joins an identical one in flight, if any.
+     *
+     * @param transport The transport of the endpoint to use.
+     * @param rq The request, should have stream set.
+     * @param listener The StreamListener object to receive the streamed
+     * response.
+     * @return As {@link #readStream(InputStream, StreamListener)}; an error
+     * Response, also passed to the listener, if Ollama reported an error.
+     * @throws Exception If an error occurs during the request.
+     */
+    static Response stream(final OllamaTransport transport, final Request rq, final StreamListener listener) throws Exception {
+        monitorRequest(rq);
+        final String cacheKey = cacheKey(transport.getEndPoint(), rq);
+        if (null != cacheKey) {
+            Response hit = ResponseCache.getDefault().get(cacheKey);
+            if (null != hit) {
+                // the whole answer as one part
+                StreamedResponse part = new StreamedResponse();
+                part.model = hit.model;
+                part.createdAt = hit.createdAt;
+                part.response = hit.response;
+                return listener.onResponseReceived(part) ? hit : null;
+            }
+        }
+        SingleFlight.StreamCall call = new SingleFlight.StreamCall() {
+            @Override
+            public Response call(final StreamListener target) throws Exception {
+                final AtomicBoolean passedOn = new AtomicBoolean();
+                final StreamListener tracker = new StreamListener() {
+                    @Override
+                    public boolean onResponseReceived(StreamedResponse responsePart) {
+                        passedOn.set(true);
+                        return target.onResponseReceived(responsePart);
                     }
-                    Response val = mapper.readValue(responseLine, Response.class);
-                    if (val.done) {
-                        val.response = fullResponse.toString();
-                        return val;
-                    } else {
-                        fullResponse.append(val.response);
-                        if (!listener.onResponseReceived(val)) {
-                            return null;
+                };
+                Response ret;
+                try {
+                    ret = RetryPolicy.getDefault().call(new RetryPolicy.Call<Response>() {
+                        @Override
+                        public Response call() throws Exception {
+                            try (InputStream is = transport.post(GENERATE, OllamaTransport.json(rq))) {
+                                return readStream(is, tracker);
+                            }
+                        }
+                    }, new BooleanSupplier() {
+                        @Override
+                        public boolean getAsBoolean() {
+                            return !passedOn.get();
                         }
+                    });
+                } catch (OllamaErrorException ex) {
+                    // retries are over, report it the way a stream always has
+                    ret = errorResponse(ex.getMessage());
+                    target.onResponseReceived(ret);
+                    return ret;
+                }
+                if (null != cacheKey) {
+                    ResponseCache.getDefault().put(cacheKey, ret);
+                }
+                return ret;
+            }
+        };
+        if (RequestKey.isDeterministic(rq)) {
+            return flights.stream(RequestKey.of(transport.getEndPoint(), rq), listener, call);
+        }
+        return call.call(listener);
+    }
+
+    /**
+     * The {@link ResponseCache} key of a request.
+     *
+     * @param endPoint Where the model digest is looked up.
+     * @param rq The request.
+     * @return The key, or null if the request is not deterministic or the
+     * cache is off.
+     * @throws IOException If serialization fails.
+     */
+    private static String cacheKey(String endPoint, Request rq) throws IOException {
+        if (!RequestKey.isDeterministic(rq) || !ResponseCache.getDefault().isEnabled()) {
+            return null;
+        }
+        String digest = Ollama.modelDigest(endPoint, rq.model);
+        return RequestKey.forCache(null == digest ? rq.model : digest, rq);
+    }
+
+    /**
+     * Pass the request to any monitors; it is only serialized to a String if
+     * there are any.
+     *
+     * @param rq The request.
+     * @throws IOException If serialization fails.
+     */
+    private static void monitorRequest(Request rq) throws IOException {
+        if (Ollama.isMonitored()) {
+            Ollama.doMonitoring(true, OllamaJson.WIRE.writeValueAsString(rq));
+        }
+    }
+
+    /**
+     * Parse a non-streamed response directly from the response body.
+     *
+     * @param is The response body.
+     * @return The parsed response.
+     * @throws IOException On a read or parse error, or if Ollama reported an
+     * error.
+     */
+    static Response readResponse(InputStream is) throws IOException {
+        Response resp = OllamaJson.RESPONSE.readValue(is);
+        checkResponse(resp);
+        return resp;
+    }
+
+    /**
+     * Monitor a non-streamed response and turn an error reply into an
+     * exception.
+     *
+     * @param resp The parsed response.
+     * @throws OllamaErrorException If Ollama reported an error.
+     */
+    private static void checkResponse(Response resp) throws IOException {
+        if (Ollama.isMonitored()) {
+            Ollama.doMonitoring(false, OllamaJson.WIRE.writeValueAsString(resp));
+        }
+        if (null != resp.error) {
+            throw new OllamaErrorException(resp.error);
+        }
+    }
+
+    /**
+     * A final Response that carries an error.
+     *
+     * @param error The error text Ollama sent.
+     * @return The Response.
+     */
+    static Response errorResponse(String error) {
+        Response err = new Response();
+        err.context = new LinkedList<>();
+        err.createdAt = LocalDateTime.now();
+        err.done = true;
+        err.evalCount = 0;
+        err.evalDuration = 1;
+        err.loadDuration = 1;
+        err.model = "?";
+        err.promptEvalCount = 0;
+        err.promptEvalDuration = 1;
+        err.sampleCount = 0;
+        err.sampleDuration = 1;
+        err.totalDuration = 3;
+        err.error = error;
+        err.response = error;
+        return err;
+    }
+
+    /**
+     * Parse a stream of newline delimited JSON parts directly from the
+     * response body, with a single parser and a single bound reader for the
+     * whole stream.
+     *
+     * @param is The response body.
+     * @param listener Receives each part.
+     * @return The final Response with the full answer; null if the listener
+     * aborted the stream.
+     * @throws OllamaErrorException If Ollama reported an error.
+     * @throws IOException On a read or parse error, or if the stream ended
+     * before the final part.
+     */
+    static Response readStream(InputStream is, StreamListener listener) throws IOException {
+        ObjectReader reader = OllamaJson.RESPONSE;
+        boolean monitored = Ollama.isMonitored();
+        StringBuilder fullResponse = new StringBuilder();
+        try (JsonParser parser = OllamaJson.MAPPER.getFactory().createParser(is)) {
+            while (JsonToken.START_OBJECT == parser.nextToken()) {
+                Response val = reader.readValue(parser);
+                if (monitored) {
+                    Ollama.doMonitoring(false, OllamaJson.WIRE.writeValueAsString(val));
+                }
+                if (null != val.error) {
+                    throw new OllamaErrorException(val.error);
+                }
+                if (val.done) {
+                    val.response = fullResponse.toString();
+                    return val;
+                } else {
+                    fullResponse.append(val.response);
+                    if (!listener.onResponseReceived(val)) {
+                        return null;
                     }
                 }
             }
-            return mapper.readValue(responseLine, Response.class);
-        } finally {
-            con.disconnect();
         }
+        throw new IOException("Stream ended before the final response");
     }
 
     /**
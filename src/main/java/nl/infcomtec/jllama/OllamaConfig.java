@@ -3,6 +3,7 @@ package nl.infcomtec.jllama;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import java.awt.Rectangle;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,6 +24,18 @@ public class OllamaConfig {
     public String lastEndpoint;
     public String lastModel;
     public String openAIKey;
+    public Integer connectTimeout; // seconds, default 10
+    public Integer readTimeout; // seconds, default 600 (a generate only responds when done)
+    public Integer poolSize; // max connections per endpoint, default 8
+    public Integer healthInterval; // seconds between endpoint probes, default 15, 0 is off
+    public Integer retryAttempts; // attempts per call in total, default 3
+    public Integer retryBackoff; // ms, first backoff cap, doubles per retry, default 500
+    public Integer cacheMemoryMB; // response cache in memory, default 32, 0 is off
+    public Integer cacheDiskMB; // response cache on disk, default 512, 0 is off
+    public Integer embeddingCache; // embedding vectors kept on the heap, default 4096, 0 turns the cache off
+    public Double hedgePercentile; // first-token latency percentile (like 0.95) to hedge context-free requests at, default off
+    public String kbEmbedModel; // embedding model for knowledge block retrieval, default nomic-embed-text:latest
+    public Boolean kbLog; // keep the knowledge base in one log (KBLog) instead of a file per block, default false
 
     public void update(Rectangle bounds) {
         x = bounds.x;
@@ -34,7 +47,7 @@ public class OllamaConfig {
 
     public void update() {
         try {
-            Ollama.getMapper().writeValue(Ollama.configFile, this);
+            OllamaJson.PRETTY.writeValue(Ollama.configFile, this);
         } catch (IOException ex) {
             Logger.getLogger(OllamaChatFrame.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -47,4 +60,52 @@ public class OllamaConfig {
     public String getLastModel() {
         return null == lastModel ? null : lastModel;
     }
+
+    public Duration effectiveConnectTimeout() {
+        return Duration.ofSeconds(null == connectTimeout ? 10 : connectTimeout);
+    }
+
+    public Duration effectiveReadTimeout() {
+        return Duration.ofSeconds(null == readTimeout ? 600 : readTimeout);
+    }
+
+    public int effectivePoolSize() {
+        return null == poolSize ? 8 : poolSize;
+    }
+
+    public int effectiveHealthInterval() {
+        return null == healthInterval ? 15 : healthInterval;
+    }
+
+    public int effectiveRetryAttempts() {
+        return null == retryAttempts ? 3 : retryAttempts;
+    }
+
+    public long effectiveRetryBackoff() {
+        return null == retryBackoff ? 500 : retryBackoff;
+    }
+
+    public long effectiveCacheMemoryMB() {
+        return null == cacheMemoryMB ? 32 : cacheMemoryMB;
+    }
+
+    public long effectiveCacheDiskMB() {
+        return null == cacheDiskMB ? 512 : cacheDiskMB;
+    }
+
+    public int effectiveEmbeddingCache() {
+        return null == embeddingCache ? EmbeddingCache.HOT_SET : embeddingCache;
+    }
+
+    public double effectiveHedgePercentile() {
+        return null == hedgePercentile ? 0 : hedgePercentile;
+    }
+
+    public String effectiveKbEmbedModel() {
+        return null == kbEmbedModel ? Nomic.model : kbEmbedModel;
+    }
+
+    public boolean effectiveKbLog() {
+        return null != kbLog && kbLog;
+    }
 }
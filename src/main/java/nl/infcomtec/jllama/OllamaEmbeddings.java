@@ -1,74 +1,375 @@
 package nl.infcomtec.jllama;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class OllamaEmbeddings {
 
     private static final String EMBED = "/api/embeddings";
+    private static final String EMBED_BATCH = "/api/embed";
+    /**
+     * Prompts per /api/embed request.
+     */
+    public static final int BATCH = 64;
+    /**
+     * Requests in flight at the same time for one batch call.
+     */
+    public static final int PARALLEL = 4;
+    /**
+     * Endpoints known to lack /api/embed (Ollama before 0.3).
+     */
+    private static final ConcurrentHashMap<String, Boolean> noBatch = new ConcurrentHashMap<>();
+    private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger n = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "OllamaEmbeddings-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
     private final String model;
     private final String endPoint;
-    private final String API_EMBED;
+    private boolean normalize;
 
     public OllamaEmbeddings(String endPoint, String model) {
         this.endPoint = endPoint;
         this.model = model;
-        API_EMBED = endPoint + EMBED;
     }
 
+    /**
+     * Return unit length vectors (the cache keeps them as the server sent
+     * them). Use for a corpus that is searched by cosine similarity, which
+     * then is a plain dot product.
+     *
+     * @param normalize true to scale every vector to length 1.
+     */
+    public void setNormalize(boolean normalize) {
+        this.normalize = normalize;
+    }
+
+    /**
+     * Get the embeddings of a prompt. If our endpoint is down (its
+     * {@link CircuitBreaker} is open) or fails, any other endpoint that has
+     * the model is tried at once, rather than waiting for ours to come back.
+     * If all fail the whole round is retried under the
+     * {@link RetryPolicy#getDefault() retry policy}. Vectors seen before come
+     * from the {@link EmbeddingCache} without any server call.
+     *
+     * @param prompt The text to embed.
+     * @return The request and its response.
+     * @throws Exception If no endpoint could answer.
+     */
     public Embeddings getEmbeddings(String prompt) throws Exception {
-        try {
-            // on rare occasions Ollama dies (out of memory?), try twice
-            ObjectMapper mapper = Ollama.getMapper();
-            Embeddings ret = new Embeddings();
-            ret.request = new Embeddings.Request();
-            ret.request.model = model;
-            ret.request.prompt = prompt;
-            String requestBody = mapper.writeValueAsString(ret.request);
-            String response = sendRequest(requestBody);
-            ret.response = mapper.readValue(response, Embeddings.Response.class);
-            return ret;
-        } catch (Exception any) {
-            System.err.println("First attempt failed: " + any.getMessage());
-            // give ollama a moment to restart
-            Thread.sleep(10000);
-        }
-        ObjectMapper mapper = Ollama.getMapper();
-        Embeddings ret = new Embeddings();
+        final Embeddings ret = new Embeddings();
         ret.request = new Embeddings.Request();
         ret.request.model = model;
         ret.request.prompt = prompt;
-        String requestBody = mapper.writeValueAsString(ret.request);
-        String response = sendRequest(requestBody);
-        ret.response = mapper.readValue(response, Embeddings.Response.class);
-        return ret;
+        EmbeddingCache cache = EmbeddingCache.getDefault();
+        byte[] key = null;
+        if (null != cache) {
+            String digest = Ollama.modelDigest(endPoint, model);
+            key = EmbeddingCache.key(null == digest ? model : digest, prompt);
+            float[] hit = cache.get(key);
+            if (null != hit) {
+                ret.response = new Embeddings.Response();
+                ret.response.embedding = hit;
+                return normalize ? ret.normalize() : ret;
+            }
+        }
+        ret.response = RetryPolicy.getDefault().call(new RetryPolicy.Call<Embeddings.Response>() {
+            @Override
+            public Embeddings.Response call() throws Exception {
+                return sendAnywhere(ret.request);
+            }
+        });
+        if (null != cache && null != ret.response.embedding && ret.response.embedding.length > 0) {
+            cache.put(key, ret.response.embedding);
+        }
+        return normalize ? ret.normalize() : ret;
+    }
+
+    /**
+     * Get the embeddings of many prompts. They are sent in batches of
+     * {@link #BATCH} to /api/embed, {@link #PARALLEL} requests at a time; if
+     * the server does not have /api/embed the prompts are sent one by one,
+     * also {@link #PARALLEL} at a time. Cached vectors are not requested.
+     *
+     * Note that /api/embed returns unit length vectors where /api/embeddings
+     * does not, so the vectors differ in length (not in direction) from those
+     * of {@link #getEmbeddings(String)}; they are cached separately.
+     *
+     * @param prompts The texts to embed.
+     * @return Row i is the vector of prompt i.
+     * @throws Exception If some prompt could not be embedded.
+     */
+    public EmbeddingMatrix getEmbeddings(List<String> prompts) throws Exception {
+        final int n = prompts.size();
+        final float[][] vectors = new float[n][];
+        final EmbeddingCache cache = EmbeddingCache.getDefault();
+        final byte[][] keys = new byte[n][];
+        List<Integer> todo = new ArrayList<>();
+        String digest = null == cache ? null : Ollama.modelDigest(endPoint, model);
+        for (int i = 0; i < n; i++) {
+            if (null != cache) {
+                keys[i] = EmbeddingCache.key(EMBED_BATCH + ":" + (null == digest ? model : digest), prompts.get(i));
+                vectors[i] = cache.get(keys[i]);
+            }
+            if (null == vectors[i]) {
+                todo.add(i);
+            }
+        }
+        if (!todo.isEmpty() && !noBatch.containsKey(endPoint)) {
+            try {
+                batched(prompts, todo, vectors, cache, keys);
+            } catch (HttpStatusException ex) {
+                if (404 != ex.status) {
+                    throw ex;
+                }
+                noBatch.put(endPoint, Boolean.TRUE);
+            }
+        }
+        List<Integer> rest = new ArrayList<>();
+        for (int i : todo) {
+            if (null == vectors[i]) {
+                rest.add(i);
+            }
+        }
+        if (!rest.isEmpty()) {
+            oneByOne(prompts, rest, vectors);
+        }
+        int dim = 0 == n ? 0 : vectors[0].length;
+        EmbeddingMatrix ret = new EmbeddingMatrix(model, n, dim);
+        for (int i = 0; i < n; i++) {
+            ret.set(i, vectors[i]);
+        }
+        return normalize ? ret.normalize() : ret;
     }
 
-    private String sendRequest(String requestBody) throws Exception {
-        URL url = new URL(API_EMBED);
-        HttpURLConnection con = (HttpURLConnection) url.openConnection();
-        con.setRequestMethod("POST");
-        con.setRequestProperty("Content-Type", "application/json");
-        con.setDoOutput(true);
+    /**
+     * Embed everything an iterator produces, in chunks of
+     * {@link #BATCH} * {@link #PARALLEL} prompts. While the caller processes
+     * one chunk the next one is already being embedded.
+     *
+     * @param prompts The texts to embed, consumed as needed.
+     * @return The vectors, one matrix per chunk, in order. An
+     * UncheckedIOException (or other RuntimeException) from next() reports
+     * a failure.
+     */
+    public Iterator<EmbeddingMatrix> embedAll(final Iterator<String> prompts) {
+        return new Iterator<EmbeddingMatrix>() {
+            private CompletableFuture<EmbeddingMatrix> ahead = fetch();
+
+            private CompletableFuture<EmbeddingMatrix> fetch() {
+                final List<String> chunk = new ArrayList<>();
+                while (chunk.size() < BATCH * PARALLEL && prompts.hasNext()) {
+                    chunk.add(prompts.next());
+                }
+                if (chunk.isEmpty()) {
+                    return null;
+                }
+                return CompletableFuture.supplyAsync(new Supplier<EmbeddingMatrix>() {
+                    @Override
+                    public EmbeddingMatrix get() {
+                        try {
+                            return getEmbeddings(chunk);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        } catch (RuntimeException ex) {
+                            throw ex;
+                        } catch (Exception ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    }
+                }, pool);
+            }
+
+            @Override
+            public boolean hasNext() {
+                return null != ahead;
+            }
 
-        try (OutputStream os = con.getOutputStream()) {
-            byte[] input = requestBody.getBytes("utf-8");
-            os.write(input, 0, input.length);
+            @Override
+            public EmbeddingMatrix next() {
+                if (null == ahead) {
+                    throw new NoSuchElementException();
+                }
+                CompletableFuture<EmbeddingMatrix> cur = ahead;
+                ahead = fetch();
+                try {
+                    return cur.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(ex);
+                } catch (ExecutionException ex) {
+                    Throwable t = ex.getCause();
+                    throw t instanceof RuntimeException ? (RuntimeException) t : new RuntimeException(t);
+                }
+            }
+        };
+    }
+
+    /**
+     * Send the prompts to /api/embed, a window of {@link #PARALLEL} batches
+     * in flight.
+     */
+    private void batched(final List<String> prompts, List<Integer> todo, final float[][] vectors,
+            final EmbeddingCache cache, final byte[][] keys) throws Exception {
+        final OllamaTransport transport = Ollama.getTransport(endPoint);
+        ArrayDeque<CompletableFuture<Void>> window = new ArrayDeque<>();
+        for (int from = 0; from < todo.size(); from += BATCH) {
+            final List<Integer> rows = todo.subList(from, Math.min(todo.size(), from + BATCH));
+            final Embeddings.BatchRequest rq = new Embeddings.BatchRequest();
+            rq.model = model;
+            rq.input = new String[rows.size()];
+            for (int i = 0; i < rq.input.length; i++) {
+                rq.input[i] = prompts.get(rows.get(i));
+            }
+            if (window.size() == PARALLEL) {
+                await(window.poll());
+            }
+            window.add(RetryPolicy.getDefault().callAsync(new Supplier<CompletableFuture<byte[]>>() {
+                @Override
+                public CompletableFuture<byte[]> get() {
+                    return transport.postAsync(EMBED_BATCH, OllamaTransport.json(rq));
+                }
+            }).thenApply(new Function<byte[], Void>() {
+                @Override
+                public Void apply(byte[] body) {
+                    try {
+                        Embeddings.BatchResponse resp = OllamaJson.BATCH_EMBEDDINGS_RESPONSE.readValue(body);
+                        if (null == resp.embeddings || resp.embeddings.length != rows.size()) {
+                            throw new IOException("Asked " + rows.size() + " embeddings, got "
+                                    + (null == resp.embeddings ? 0 : resp.embeddings.length));
+                        }
+                        for (int i = 0; i < rows.size(); i++) {
+                            int row = rows.get(i);
+                            vectors[row] = resp.embeddings[i];
+                            if (null != cache) {
+                                cache.put(keys[row], resp.embeddings[i]);
+                            }
+                        }
+                        return null;
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+            }));
         }
+        while (!window.isEmpty()) {
+            await(window.poll());
+        }
+    }
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(con.getInputStream(), "utf-8"))) {
-            StringBuilder response = new StringBuilder();
-            String responseLine;
-            while ((responseLine = br.readLine()) != null) {
-                response.append(responseLine.trim());
+    /**
+     * Send the prompts one at a time with {@link #getEmbeddings(String)},
+     * {@link #PARALLEL} at once.
+     */
+    private void oneByOne(final List<String> prompts, List<Integer> todo, final float[][] vectors) throws Exception {
+        ArrayDeque<CompletableFuture<Void>> window = new ArrayDeque<>();
+        for (final int row : todo) {
+            if (window.size() == PARALLEL) {
+                await(window.poll());
             }
-            return response.toString();
-        } finally {
-            con.disconnect();
+            window.add(CompletableFuture.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        vectors[row] = getEmbeddings(prompts.get(row)).response.embedding;
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    } catch (RuntimeException ex) {
+                        throw ex;
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            }, pool));
+        }
+        while (!window.isEmpty()) {
+            await(window.poll());
+        }
+    }
+
+    /**
+     * Wait for a future, throwing what it failed with.
+     */
+    private static void await(CompletableFuture<Void> f) throws Exception {
+        try {
+            f.get();
+        } catch (ExecutionException ex) {
+            Throwable t = RetryPolicy.unwrap(ex);
+            if (t instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) t).getCause();
+            }
+            throw t instanceof Exception ? (Exception) t : ex;
+        }
+    }
+
+    /**
+     * Try the candidate endpoints in order.
+     */
+    private Embeddings.Response sendAnywhere(Embeddings.Request request) throws IOException {
+        IOException last = null;
+        for (String ep : candidates()) {
+            try {
+                return sendRequest(ep, request);
+            } catch (HttpStatusException ex) {
+                if (!ex.isServerError()) {
+                    // our fault, another server will not like it either
+                    throw ex;
+                }
+                last = ex;
+            } catch (IOException ex) {
+                last = ex;
+            }
+        }
+        throw last;
+    }
+
+    /**
+     * Our endpoint first, then the others that have the model; those known to
+     * be down go last so they fail fast rather than not being tried at all.
+     */
+    private List<String> candidates() {
+        List<String> ret = new ArrayList<>();
+        List<String> down = new ArrayList<>();
+        ret.add(endPoint);
+        for (String ep : Ollama.endpointsFor(model)) {
+            if (!ep.equals(endPoint)) {
+                if (CircuitBreaker.of(ep).isAvailable()) {
+                    ret.add(ep);
+                } else {
+                    down.add(ep);
+                }
+            }
+        }
+        if (ret.size() > 1 && !CircuitBreaker.of(endPoint).isAvailable()) {
+            ret.add(ret.remove(0));
+        }
+        ret.addAll(down);
+        return ret;
+    }
+
+    private Embeddings.Response sendRequest(String ep, Embeddings.Request request) throws IOException {
+        try (InputStream is = Ollama.getTransport(ep).post(EMBED, OllamaTransport.json(request))) {
+            return OllamaJson.EMBEDDINGS_RESPONSE.readValue(is);
         }
     }
 }
@@ -0,0 +1,23 @@
+package nl.infcomtec.jllama;
+
+import java.io.IOException;
+
+/**
+ * Ollama answered, but with an error object instead of a response, for
+ * instance when the model runner crashed.
+ *
+ * @author walter
+ */
+public class OllamaErrorException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     *
+     * @param error The error text Ollama sent.
+     */
+    public OllamaErrorException(String error) {
+        super(error);
+    }
+}
@@ -0,0 +1,99 @@
+package nl.infcomtec.jllama;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateTimeDeserializer;
+import com.fasterxml.jackson.datatype.jsr310.ser.LocalDateTimeSerializer;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+
+/**
+ * Shared JSON (de)serialization.
+ *
+ * One mapper is configured once; the readers and writers derived from it are
+ * immutable and thread-safe, and cache their (de)serializers after first use.
+ * Use {@link #WIRE} for API traffic, which should be compact, and
+ * {@link #PRETTY} for files a user may want to read or edit, like
+ * chatcfg.json.
+ *
+ * @author walter
+ */
+public final class OllamaJson {
+
+    /**
+     * A DateTimeFormatter for formatting and parsing LocalDateTime objects.
+     * The offset Ollama sends is optional, a LocalDateTime has none to
+     * format.
+     */
+    private static final DateTimeFormatter formatter = new DateTimeFormatterBuilder()
+            .appendPattern("yyyy-MM-dd'T'HH:mm:ss")
+            .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true)
+            .optionalStart()
+            .appendPattern("XXX")
+            .optionalEnd()
+            .toFormatter();
+
+    /**
+     * The "object-aware" mapper everything else derives from. Do not change
+     * its configuration, it is shared.
+     */
+    public static final ObjectMapper MAPPER = createMapper();
+
+    /**
+     * Compact writer, for requests.
+     */
+    public static final ObjectWriter WIRE = MAPPER.writer();
+
+    /**
+     * Indenting writer, for files.
+     */
+    public static final ObjectWriter PRETTY = MAPPER.writerWithDefaultPrettyPrinter();
+
+    /**
+     * Reader for (full) generate responses.
+     */
+    public static final ObjectReader RESPONSE = MAPPER.readerFor(Response.class);
+
+    /**
+     * Reader for partial generate responses.
+     */
+    public static final ObjectReader STREAMED_RESPONSE = MAPPER.readerFor(StreamedResponse.class);
+
+    /**
+     * Reader for generate requests (as seen by monitors).
+     */
+    public static final ObjectReader REQUEST = MAPPER.readerFor(Request.class);
+
+    /**
+     * Reader for embedding responses.
+     */
+    public static final ObjectReader EMBEDDINGS_RESPONSE = MAPPER.readerFor(Embeddings.Response.class);
+
+    /**
+     * Reader for batch embedding responses, straight into float arrays.
+     */
+    public static final ObjectReader BATCH_EMBEDDINGS_RESPONSE = MAPPER.readerFor(Embeddings.BatchResponse.class);
+
+    /**
+     * Reader for the /api/tags response.
+     */
+    public static final ObjectReader AVAILABLE_MODELS = MAPPER.readerFor(AvailableModels.class);
+
+    private OllamaJson() {
+    }
+
+    private static ObjectMapper createMapper() {
+        ObjectMapper mapper = new ObjectMapper();
+        JavaTimeModule module = new JavaTimeModule();
+        module.addSerializer(LocalDateTime.class, new LocalDateTimeSerializer(formatter));
+        module.addDeserializer(LocalDateTime.class, new LocalDateTimeDeserializer(formatter));
+        mapper.registerModule(module);
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return mapper;
+    }
+}
@@ -0,0 +1,103 @@
+package nl.infcomtec.jllama;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The wire between this client and one Ollama server.
+ *
+ * All API traffic (generate, embeddings, tags) goes through an instance of
+ * this interface, obtained with {@link Ollama#getTransport(String)}. The
+ * default implementation is {@link HttpTransport}, a different one can be
+ * plugged in with {@link Ollama#setTransportFactory(Factory)}.
+ *
+ * @author walter
+ */
+public interface OllamaTransport {
+
+    /**
+     * The endpoint this transport talks to.
+     *
+     * @return For instance "http://localhost:11434".
+     */
+    String getEndPoint();
+
+    /**
+     * POST a JSON body to an API path. The body is written straight into the
+     * connection, it is never held in memory as a whole.
+     *
+     * @param path The API path, for instance "/api/generate".
+     * @param body Writes the JSON request body.
+     * @return The response body, caller <b>must</b> close it.
+     * @throws IOException If the server could not be reached, a
+     * {@link HttpStatusException} if it did not respond with 200 OK.
+     */
+    InputStream post(String path, Body body) throws IOException;
+
+    /**
+     * POST a JSON body to an API path without blocking the calling thread.
+     *
+     * @param path The API path, for instance "/api/generate".
+     * @param body Writes the JSON request body.
+     * @return Completes with the full response body, or exceptionally with an
+     * IOException if the server could not be reached or a
+     * {@link HttpStatusException} if it did not respond with 200 OK.
+     */
+    CompletableFuture<byte[]> postAsync(String path, Body body);
+
+    /**
+     * GET an API path.
+     *
+     * @param path The API path, for instance "/api/tags".
+     * @return The response body, caller <b>must</b> close it.
+     * @throws IOException If the server could not be reached or did not
+     * respond with 200 OK.
+     */
+    InputStream get(String path) throws IOException;
+
+    /**
+     * A request body, produced while it is being sent.
+     */
+    interface Body {
+
+        /**
+         * Write the body. Called once per attempt to send it.
+         *
+         * @param os Where to write to, should be closed when done.
+         * @throws IOException If writing fails.
+         */
+        void writeTo(OutputStream os) throws IOException;
+    }
+
+    /**
+     * Get a body that serializes an object as compact JSON while it is being
+     * sent; any byte[] fields (like images) are base64 encoded on the fly.
+     *
+     * @param request The object to send.
+     * @return The body.
+     */
+    static Body json(final Object request) {
+        return new Body() {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                OllamaJson.WIRE.writeValue(os, request);
+            }
+        };
+    }
+
+    /**
+     * Creates transports, one per endpoint.
+     */
+    interface Factory {
+
+        /**
+         * Create a transport.
+         *
+         * @param endPoint The endpoint to connect to.
+         * @return A new transport.
+         */
+        OllamaTransport create(String endPoint);
+    }
+}
@@ -0,0 +1,403 @@
+package nl.infcomtec.jllama;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Compressed copy of an {@link EmbeddingMatrix} for search, with the same
+ * results as {@link SimilaritySearch}, in far less memory.
+ * <dl>
+ * <dt>INT8</dt><dd>Every value as a byte, scaled per vector so its largest
+ * value is 127; 4x smaller than float.</dd>
+ * <dt>BINARY</dt><dd>Only the sign of every value, 64 per long, compared by
+ * Hamming distance (popcount); 32x smaller.</dd>
+ * </dl>
+ * A search first scores all codes (in parallel, like
+ * {@link SimilaritySearch}) and keeps k * {@link #setRescore(int) rescore}
+ * candidates, then scores those again exactly with the original vectors.
+ * The originals can come from anywhere ({@link Originals}), like a file, so
+ * only the codes need to be on the heap.
+ *
+ * @author walter
+ */
+public class QuantizedIndex {
+
+    /**
+     * How the vectors are compressed.
+     */
+    public enum Mode {
+        INT8, BINARY
+    }
+
+    /**
+     * Where the full precision vectors are, for rescoring.
+     */
+    public interface Originals {
+
+        /**
+         * Read a vector.
+         *
+         * @param row The vector.
+         * @param into Where to put it, of the right length.
+         */
+        void read(int row, float[] into);
+    }
+
+    /**
+     * Candidates per result that are rescored, for INT8.
+     */
+    public static final int RESCORE = 4;
+    /**
+     * Candidates per result that are rescored, for BINARY; one bit per value
+     * ranks less precisely.
+     */
+    public static final int RESCORE_BINARY = 10;
+    /**
+     * Rows per leaf task at least; the codes are cheap to score.
+     */
+    public static final int LEAF_ROWS = 4096;
+    public final String model;
+    public final int rows;
+    public final int dim;
+    public final Mode mode;
+    private final int words;
+    private final byte[] codes;
+    private final long[] bits;
+    private final float[] scales;
+    private final float[] sums;
+    private final float[] squares;
+    private final Originals originals;
+    private final ForkJoinPool pool;
+    private volatile int rescore;
+
+    /**
+     * Compress a matrix, rescoring from the matrix itself. That does not
+     * save memory unless the matrix is dropped, see the other constructor.
+     *
+     * @param matrix The vectors.
+     * @param mode How to compress them.
+     */
+    public QuantizedIndex(final EmbeddingMatrix matrix, Mode mode) {
+        this(matrix, mode, new Originals() {
+            @Override
+            public void read(int row, float[] into) {
+                System.arraycopy(matrix.data, row * matrix.dim, into, 0, matrix.dim);
+            }
+        });
+    }
+
+    /**
+     * Compress a matrix.
+     *
+     * @param matrix The vectors, not referenced afterwards.
+     * @param mode How to compress them.
+     * @param originals Where to read the vectors for rescoring; null to
+     * return the estimates of the first pass.
+     */
+    public QuantizedIndex(EmbeddingMatrix matrix, Mode mode, Originals originals) {
+        this.model = matrix.model;
+        this.rows = matrix.rows;
+        this.dim = matrix.dim;
+        this.mode = mode;
+        this.originals = originals;
+        this.pool = ForkJoinPool.commonPool();
+        this.words = (dim + 63) / 64;
+        this.rescore = Mode.BINARY == mode ? RESCORE_BINARY : RESCORE;
+        float[] data = matrix.data;
+        if (Mode.INT8 == mode) {
+            codes = new byte[rows * dim];
+            scales = new float[rows];
+            sums = new float[rows];
+            squares = new float[rows];
+            double[] s = matrix.sums();
+            double[] sq = matrix.squares();
+            for (int r = 0; r < rows; r++) {
+                scales[r] = quantize(data, r * dim, dim, codes, r * dim);
+                sums[r] = (float) s[r];
+                squares[r] = (float) sq[r];
+            }
+            bits = null;
+        } else {
+            bits = new long[rows * words];
+            for (int r = 0; r < rows; r++) {
+                signs(data, r * dim, dim, bits, r * words);
+            }
+            codes = null;
+            scales = null;
+            sums = null;
+            squares = null;
+        }
+    }
+
+    /**
+     * @param rescore Candidates per result that are rescored with the
+     * originals; more gives better recall.
+     */
+    public void setRescore(int rescore) {
+        this.rescore = Math.max(1, rescore);
+    }
+
+    /**
+     * @return Bytes taken by the codes and per-vector values.
+     */
+    public long memoryBytes() {
+        return Mode.INT8 == mode ? (long) codes.length + 12L * rows : 8L * bits.length;
+    }
+
+    /**
+     * Find the rows closest to some embeddings.
+     *
+     * @param query The embeddings to look for, of the same model.
+     * @param k How many to return.
+     * @param metric How to compare.
+     * @return At most k hits, closest first.
+     */
+    public List<SearchHit> search(Embeddings query, int k, Metric metric) {
+        if (null != model && !model.equals(query.request.model)) {
+            throw new RuntimeException("Not the same model");
+        }
+        return search(query.response.embedding, k, metric);
+    }
+
+    /**
+     * Find the rows closest to a vector.
+     *
+     * @param query The vector to look for.
+     * @param k How many to return.
+     * @param metric How to compare.
+     * @return At most k hits, closest first. Without originals the scores
+     * are estimates: for INT8 the metric of the decoded vectors, for BINARY
+     * the cosine estimated from the Hamming distance (COSINE, PEARSON) or
+     * the Hamming distance itself (L2, L1).
+     */
+    public List<SearchHit> search(float[] query, int k, Metric metric) {
+        if (query.length != dim) {
+            throw new IllegalArgumentException("Query has " + query.length + " values, not " + dim);
+        }
+        if (k <= 0 || 0 == rows) {
+            return new ArrayList<>();
+        }
+        Query q = new Query(query, metric);
+        int leaf = Math.max(LEAF_ROWS, rows / (pool.getParallelism() * 8));
+        if (null == originals) {
+            List<SearchHit> ret = new ArrayList<>();
+            for (SearchHit h : pool.invoke(new Part(q, Math.min(k, rows), 0, rows, leaf)).toHits(Metric.COSINE)) {
+                ret.add(new SearchHit(h.row, q.estimate(h.score)));
+            }
+            return ret;
+        }
+        // no more candidates than rows, and no int overflow on the way
+        int[] candidates = pool.invoke(new Part(q, (int) Math.min((long) k * rescore, rows), 0, rows, leaf)).toRows();
+        TopK top = new TopK(Math.min(k, rows));
+        float[] v = new float[dim];
+        for (int row : candidates) {
+            originals.read(row, v);
+            double score;
+            switch (metric) {
+                case COSINE:
+                    score = VectorMath.cosine(query, 0, v, 0, dim);
+                    break;
+                case L2:
+                    score = Math.sqrt(VectorMath.l2Squared(query, 0, v, 0, dim));
+                    break;
+                case L1:
+                    score = VectorMath.l1(query, 0, v, 0, dim);
+                    break;
+                default:
+                    score = VectorMath.pearson(query, 0, v, 0, dim);
+                    break;
+            }
+            if (!Double.isNaN(score)) {
+                top.offer(row, metric.rank(score));
+            }
+        }
+        return top.toHits(metric);
+    }
+
+    /**
+     * Scale a vector to bytes.
+     *
+     * @return The scale: value = code * scale.
+     */
+    private static float quantize(float[] v, int off, int n, byte[] into, int at) {
+        float max = 0;
+        for (int i = 0; i < n; i++) {
+            max = Math.max(max, Math.abs(v[off + i]));
+        }
+        if (0 == max) {
+            return 0;
+        }
+        float f = 127 / max;
+        for (int i = 0; i < n; i++) {
+            into[at + i] = (byte) Math.round(v[off + i] * f);
+        }
+        return max / 127;
+    }
+
+    /**
+     * Pack the signs of a vector, bit set for a positive value.
+     */
+    private static void signs(float[] v, int off, int n, long[] into, int at) {
+        for (int i = 0; i < n; i++) {
+            if (v[off + i] > 0) {
+                into[at + (i >>> 6)] |= 1L << (i & 63);
+            }
+        }
+    }
+
+    /**
+     * The query in every form the first pass needs.
+     */
+    private final class Query {
+
+        final float[] vector;
+        final Metric metric;
+        final byte[] code;
+        final float scale;
+        final double qSum;
+        final double qSquares;
+        final long[] signs;
+
+        Query(float[] vector, Metric metric) {
+            this.vector = vector;
+            this.metric = metric;
+            double s = 0;
+            double sq = 0;
+            for (float f : vector) {
+                s += f;
+                sq += (double) f * f;
+            }
+            this.qSum = s;
+            this.qSquares = sq;
+            if (Mode.INT8 == mode) {
+                code = new byte[dim];
+                scale = quantize(vector, 0, dim, code, 0);
+                signs = null;
+            } else {
+                signs = new long[words];
+                signs(vector, 0, dim, signs, 0);
+                code = null;
+                scale = 0;
+            }
+        }
+
+        /**
+         * First pass over rows [from, to), higher rank is closer.
+         */
+        void scan(int from, int to, TopK top) {
+            if (Mode.BINARY == mode) {
+                for (int r = from; r < to; r++) {
+                    int h = 0;
+                    for (int w = 0, at = r * words; w < words; w++) {
+                        h += Long.bitCount(signs[w] ^ bits[at + w]);
+                    }
+                    top.offer(r, -h);
+                }
+                return;
+            }
+            double norm = Math.sqrt(qSquares);
+            for (int r = from; r < to; r++) {
+                int off = r * dim;
+                double rank;
+                // decoding for L1 costs more than the exact scan; when rescoring
+                // follows, L2 from the integer dot product ranks nearly the same
+                if (Metric.L1 == metric && null == originals) {
+                    float s = scales[r];
+                    float d = 0;
+                    for (int i = 0; i < dim; i++) {
+                        d += Math.abs(vector[i] - codes[off + i] * s);
+                    }
+                    rank = -d;
+                } else {
+                    double dot = (double) scale * scales[r] * dot(code, codes, off, dim);
+                    switch (metric) {
+                        case COSINE:
+                            double den = norm * Math.sqrt(squares[r]);
+                            rank = 0 == den ? Double.NaN : dot / den;
+                            break;
+                        case L2:
+                        case L1:
+                            rank = -Math.sqrt(Math.max(0, qSquares + squares[r] - 2 * dot));
+                            break;
+                        default:
+                            rank = VectorMath.pearson(dim, qSum, sums[r], dot, qSquares, squares[r]);
+                            break;
+                    }
+                }
+                if (!Double.isNaN(rank)) {
+                    top.offer(r, rank);
+                }
+            }
+        }
+
+        /**
+         * Turn a first pass rank into a score of the metric.
+         */
+        double estimate(double rank) {
+            if (Mode.BINARY == mode) {
+                if (metric.distance) {
+                    return -rank;
+                }
+                // the angle is about pi times the fraction of differing signs
+                return Math.cos(Math.PI * -rank / dim);
+            }
+            return metric.rank(rank);
+        }
+    }
+
+    /**
+     * Dot product of byte codes, in int; unrolled like {@link VectorMath}.
+     */
+    private static int dot(byte[] q, byte[] codes, int off, int n) {
+        int s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int end = n & ~3; i < end; i += 4) {
+            s0 += q[i] * codes[off + i];
+            s1 += q[i + 1] * codes[off + i + 1];
+            s2 += q[i + 2] * codes[off + i + 2];
+            s3 += q[i + 3] * codes[off + i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += q[i] * codes[off + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * A range of rows; splits in two until it is small enough to scan.
+     */
+    private final class Part extends RecursiveTask<TopK> {
+
+        private static final long serialVersionUID = 1L;
+        private final Query q;
+        private final int k;
+        private final int from;
+        private final int to;
+        private final int leaf;
+
+        Part(Query q, int k, int from, int to, int leaf) {
+            this.q = q;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+            this.leaf = leaf;
+        }
+
+        @Override
+        protected TopK compute() {
+            if (to - from <= leaf) {
+                TopK top = new TopK(k);
+                q.scan(from, to, top);
+                return top;
+            }
+            int mid = (from + to) >>> 1;
+            Part right = new Part(q, k, mid, to, leaf);
+            right.fork();
+            TopK top = new Part(q, k, from, mid, leaf).compute();
+            top.addAll(right.join());
+            return top;
+        }
+    }
+}
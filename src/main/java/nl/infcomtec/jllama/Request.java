@@ -28,10 +28,11 @@ public class Request {
     public String format;
 
     /**
-     * An array of base64-encoded images, for use with multimodal models such as
-     * llava.
+     * An array of images (for instance PNG files), for use with multimodal
+     * models such as llava. In JSON these are base64-encoded strings; the
+     * encoding is done on the fly while the request is sent.
      */
-    public String[] images;
+    public byte[][] images;
 
     /**
      * System prompt that overrides what is defined in the Modelfile, used to
@@ -0,0 +1,111 @@
+package nl.infcomtec.jllama;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Canonical identity of a generate request, for coalescing and caching.
+ *
+ * @author walter
+ */
+public class RequestKey {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Will Ollama give the same answer every time? That is when a seed is set
+     * and the temperature is 0.
+     *
+     * @param rq The request.
+     * @return True if the output is reproducible.
+     */
+    public static boolean isDeterministic(Request rq) {
+        return null != rq.options && null != rq.options.seed
+                && null != rq.options.temperature && 0 == rq.options.temperature;
+    }
+
+    /**
+     * SHA-256 of the endpoint and the compact JSON of the request, which is
+     * exactly what goes over the wire. The JSON is streamed into the digest,
+     * images and context are never held as a String.
+     *
+     * @param endPoint The endpoint the request is for.
+     * @param rq The request.
+     * @return The digest as hex.
+     * @throws IOException If serialization fails.
+     */
+    public static String of(String endPoint, Request rq) throws IOException {
+        MessageDigest md = sha256();
+        md.update(endPoint.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) '\n');
+        OllamaJson.WIRE.writeValue(new DigestOutputStream(OutputStream.nullOutputStream(), md), rq);
+        return hex(md.digest());
+    }
+
+    /**
+     * SHA-256 of what determines a deterministic answer, for the
+     * {@link ResponseCache}: the model by its digest (so the same model on
+     * another server shares entries and a re-pulled model does not), the
+     * prompts, the options, the context and a hash per image. Not the
+     * endpoint, the stream flag or keep_alive.
+     *
+     * @param modelDigest The digest of the model, or its name if unknown.
+     * @param rq The request.
+     * @return The digest as hex.
+     * @throws IOException If serialization fails.
+     */
+    public static String forCache(String modelDigest, Request rq) throws IOException {
+        MessageDigest md = sha256();
+        try (JsonGenerator gen = OllamaJson.MAPPER.getFactory().createGenerator(
+                new DigestOutputStream(OutputStream.nullOutputStream(), md))) {
+            gen.writeStartObject();
+            gen.writeStringField("model", modelDigest);
+            gen.writeStringField("prompt", rq.prompt);
+            gen.writeStringField("system", rq.system);
+            gen.writeStringField("template", rq.template);
+            gen.writeStringField("format", rq.format);
+            gen.writeObjectField("raw", rq.raw);
+            gen.writeObjectField("options", rq.options);
+            gen.writeObjectField("context", rq.context);
+            gen.writeArrayFieldStart("images");
+            if (null != rq.images) {
+                for (byte[] img : rq.images) {
+                    gen.writeString(hex(sha256().digest(img)));
+                }
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+        return hex(md.digest());
+    }
+
+    /**
+     * @return A new SHA-256 digest.
+     */
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // every JRE has SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param bytes Some bytes.
+     * @return Lower case hex.
+     */
+    static String hex(byte[] bytes) {
+        char[] ret = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            ret[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            ret[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(ret);
+    }
+}
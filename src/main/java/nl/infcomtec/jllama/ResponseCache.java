@@ -0,0 +1,296 @@
+package nl.infcomtec.jllama;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of deterministic generations (see
+ * {@link RequestKey#isDeterministic(Request)}), keyed by
+ * {@link RequestKey#forCache(String, Request)}.
+ *
+ * Two tiers: a least-recently-used map of serialized responses in memory,
+ * bounded in bytes, in front of one file per response on disk, also bounded
+ * in bytes. A disk hit is promoted to memory and its file touched; when the
+ * disk tier is full the least recently touched files go first. Entries are
+ * stored as JSON and parsed on every hit, so callers never share a Response.
+ *
+ * @author walter
+ */
+public class ResponseCache {
+
+    /**
+     * Default location of the disk tier.
+     */
+    public static final File CACHE_DIR = new File(Ollama.WORK_DIR, "responses");
+    private static ResponseCache defaultCache;
+    private final File dir;
+    private final long maxMemory;
+    private final long maxDisk;
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private long memoryBytes;
+    /**
+     * Bytes on disk, -1 until the directory has been scanned.
+     */
+    private long diskBytes = -1;
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param dir Directory of the disk tier.
+     * @param maxMemory Bytes in memory, 0 for no memory tier.
+     * @param maxDisk Bytes on disk, 0 for no disk tier.
+     */
+    public ResponseCache(File dir, long maxMemory, long maxDisk) {
+        this.dir = dir;
+        this.maxMemory = maxMemory;
+        this.maxDisk = maxDisk;
+    }
+
+    /**
+     * Get the cache used by the clients, sized from {@link Ollama#config} on
+     * first use.
+     *
+     * @return The default cache.
+     */
+    public static synchronized ResponseCache getDefault() {
+        if (null == defaultCache) {
+            OllamaConfig cfg = null == Ollama.config ? new OllamaConfig() : Ollama.config;
+            defaultCache = new ResponseCache(CACHE_DIR, cfg.effectiveCacheMemoryMB() << 20, cfg.effectiveCacheDiskMB() << 20);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Replace the cache used by the clients.
+     *
+     * @param cache The new default cache.
+     */
+    public static synchronized void setDefault(ResponseCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * @return False if both tiers have size 0.
+     */
+    public boolean isEnabled() {
+        return maxMemory > 0 || maxDisk > 0;
+    }
+
+    /**
+     * Look up a response.
+     *
+     * @param key See {@link RequestKey#forCache(String, Request)}.
+     * @return A fresh copy of the cached response, or null on a miss.
+     */
+    public Response get(String key) {
+        byte[] json;
+        synchronized (memory) {
+            json = memory.get(key);
+        }
+        if (null != json) {
+            memoryHits.incrementAndGet();
+        } else if (maxDisk > 0) {
+            File f = file(key);
+            try {
+                json = Files.readAllBytes(f.toPath());
+                f.setLastModified(System.currentTimeMillis());
+                diskHits.incrementAndGet();
+                remember(key, json);
+            } catch (IOException ex) {
+                // not there
+            }
+        }
+        if (null == json) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            return OllamaJson.RESPONSE.readValue(json);
+        } catch (IOException ex) {
+            Logger.getLogger(ResponseCache.class.getName()).log(Level.WARNING, "Corrupt cache entry " + key, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Store a response; error responses are not stored.
+     *
+     * @param key See {@link RequestKey#forCache(String, Request)}.
+     * @param resp The response.
+     */
+    public void put(String key, Response resp) {
+        if (null == resp || null != resp.error) {
+            return;
+        }
+        try {
+            byte[] json = OllamaJson.WIRE.writeValueAsBytes(resp);
+            remember(key, json);
+            if (maxDisk > 0) {
+                store(key, json);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ResponseCache.class.getName()).log(Level.WARNING, "Could not cache " + key, ex);
+        }
+    }
+
+    private void remember(String key, byte[] json) {
+        if (json.length > maxMemory) {
+            return;
+        }
+        synchronized (memory) {
+            byte[] old = memory.put(key, json);
+            memoryBytes += json.length - (null == old ? 0 : old.length);
+            for (Iterator<byte[]> it = memory.values().iterator(); memoryBytes > maxMemory && it.hasNext();) {
+                memoryBytes -= it.next().length;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void store(String key, byte[] json) throws IOException {
+        File f = file(key);
+        f.getParentFile().mkdirs();
+        // a name of its own, the same key may be stored by another thread or
+        // process at the same time
+        Path tmp = Files.createTempFile(f.getParentFile().toPath(), key, ".tmp");
+        long old = f.length();
+        try {
+            Files.write(tmp, json);
+            Files.move(tmp, f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+        synchronized (this) {
+            if (diskBytes >= 0) {
+                diskBytes += json.length - old;
+            }
+        }
+        trimDisk();
+    }
+
+    /**
+     * Delete the least recently used files until the disk tier is at 90% of
+     * its size.
+     */
+    private synchronized void trimDisk() {
+        if (diskBytes >= 0 && diskBytes <= maxDisk) {
+            return;
+        }
+        List<File> files = new ArrayList<>();
+        diskBytes = 0;
+        File[] subs = dir.listFiles();
+        if (null != subs) {
+            for (File sub : subs) {
+                File[] entries = sub.listFiles();
+                if (null != entries) {
+                    files.addAll(Arrays.asList(entries));
+                }
+            }
+        }
+        for (File f : files) {
+            diskBytes += f.length();
+        }
+        if (diskBytes <= maxDisk) {
+            return;
+        }
+        files.sort(new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        long target = maxDisk / 10 * 9;
+        for (Iterator<File> it = files.iterator(); diskBytes > target && it.hasNext();) {
+            File f = it.next();
+            long len = f.length();
+            if (f.delete()) {
+                diskBytes -= len;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private File file(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key + ".json");
+    }
+
+    /**
+     * Empty both tiers.
+     */
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+            memoryBytes = 0;
+        }
+        synchronized (this) {
+            File[] subs = dir.listFiles();
+            if (null != subs) {
+                for (File sub : subs) {
+                    File[] entries = sub.listFiles();
+                    if (null != entries) {
+                        for (File f : entries) {
+                            f.delete();
+                        }
+                    }
+                    sub.delete();
+                }
+            }
+            diskBytes = 0;
+        }
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return Hits of either tier as a fraction of all lookups.
+     */
+    public double getHitRatio() {
+        long hits = memoryHits.get() + diskHits.get();
+        long all = hits + misses.get();
+        return 0 == all ? 0 : (double) hits / all;
+    }
+
+    @Override
+    public String toString() {
+        int entries;
+        long bytes;
+        synchronized (memory) {
+            entries = memory.size();
+            bytes = memoryBytes;
+        }
+        return String.format("ResponseCache{memory=%d entries/%d bytes, memoryHits=%d, diskHits=%d, misses=%d, evictions=%d, hitRatio=%.2f}",
+                entries, bytes, memoryHits.get(), diskHits.get(), misses.get(), evictions.get(), getHitRatio());
+    }
+}
@@ -0,0 +1,115 @@
+package nl.infcomtec.jllama;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A streamed generation as a reactive publisher.
+ *
+ * The HTTP response is read on a pool thread which hands each part to a
+ * bounded buffer; the subscriber is called from another pool thread and only
+ * gets as many parts as it has requested. If the buffer is full the reader
+ * simply stops reading, which lets TCP slow the server down, rather than
+ * dropping the connection. Cancelling the subscription aborts the request.
+ *
+ * The last item is the full {@link Response} (done is true) with the complete
+ * answer, after which onComplete is called. This publisher is single use:
+ * only the first subscriber gets the stream.
+ *
+ * @author walter
+ */
+public class ResponsePublisher implements Flow.Publisher<StreamedResponse> {
+
+    /**
+     * Default number of parts buffered between the reader and the subscriber.
+     */
+    public static final int DEFAULT_BUFFER = 256;
+    private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger n = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ResponsePublisher-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final Source source;
+    private final int bufferSize;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * The actual streamed request.
+     */
+    public interface Source {
+
+        /**
+         * Run the request, feeding each part to the listener.
+         *
+         * @param listener Returns false when the stream should be aborted.
+         * @return The final response, or null if aborted.
+         * @throws Exception If anything goes wrong.
+         */
+        Response stream(OllamaClient.StreamListener listener) throws Exception;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param source The streamed request, started when subscribed to.
+     * @param bufferSize Maximum number of parts waiting for the subscriber.
+     */
+    public ResponsePublisher(Source source, int bufferSize) {
+        this.source = source;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super StreamedResponse> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("This stream already has a subscriber"));
+            return;
+        }
+        final SubmissionPublisher<StreamedResponse> pub = new SubmissionPublisher<>(pool, bufferSize);
+        pub.subscribe(subscriber);
+        pool.execute(new Runnable() {
+            private StreamedResponse last;
+
+            @Override
+            public void run() {
+                try {
+                    Response resp = source.stream(new OllamaClient.StreamListener() {
+                        @Override
+                        public boolean onResponseReceived(StreamedResponse responsePart) {
+                            last = responsePart;
+                            // blocks while the buffer is full
+                            pub.submit(responsePart);
+                            return pub.hasSubscribers();
+                        }
+                    });
+                    if (null != resp && resp != last) {
+                        pub.submit(resp);
+                    }
+                    pub.close();
+                } catch (Exception any) {
+                    Ollama.oops(any);
+                    pub.closeExceptionally(any);
+                }
+            }
+        });
+    }
+}
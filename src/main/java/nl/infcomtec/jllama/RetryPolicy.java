@@ -0,0 +1,309 @@
+package nl.infcomtec.jllama;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.util.EnumSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * When and how to retry a failed Ollama call.
+ *
+ * Failures are classified first (see {@link Failure}). A call that never
+ * reached the server can always be repeated; any other failure only if the
+ * call is still safe to repeat, which for a streamed call means no token has
+ * been passed on yet. Between attempts the policy waits an exponentially
+ * growing, fully jittered time, so clients that failed together do not come
+ * back together.
+ *
+ * Retries are also limited by a budget shared by all calls using the policy:
+ * each call earns a fraction of a retry, each retry spends a whole one. When
+ * a server is down for good this turns a retry storm into a trickle.
+ *
+ * Only the failing call is retried, never a whole batch of them.
+ *
+ * @author walter
+ */
+public class RetryPolicy {
+
+    /**
+     * What went wrong.
+     */
+    public enum Failure {
+        /**
+         * Could not connect, the request was not sent.
+         */
+        CONNECT,
+        /**
+         * The circuit breaker of the endpoint is open; not retried, the point
+         * is to fail fast.
+         */
+        CIRCUIT_OPEN,
+        /**
+         * No response in time.
+         */
+        TIMEOUT,
+        /**
+         * HTTP 5xx, or 429 too many requests.
+         */
+        SERVER,
+        /**
+         * HTTP 4xx, the request is wrong; never retried.
+         */
+        CLIENT,
+        /**
+         * Ollama sent a JSON error object instead of a response.
+         */
+        OLLAMA_ERROR,
+        /**
+         * The connection broke or the response could not be parsed.
+         */
+        NETWORK,
+        /**
+         * Anything else, a bug rather than bad luck; never retried.
+         */
+        OTHER
+    }
+
+    /**
+     * Earned per call, a retry costs 1.
+     */
+    public static final double BUDGET_RATIO = 0.2;
+    /**
+     * The budget never holds more than this.
+     */
+    public static final double BUDGET_MAX = 10;
+    private static RetryPolicy defaultPolicy;
+    private final int maxAttempts;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final EnumSet<Failure> retryOn;
+    private double budget = BUDGET_MAX;
+
+    /**
+     * Constructor.
+     *
+     * @param maxAttempts Attempts in total, 1 means no retries.
+     * @param initialBackoff Maximum wait before the first retry in ms.
+     * @param maxBackoff Maximum wait before any retry in ms.
+     * @param retryOn The failures worth retrying.
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, EnumSet<Failure> retryOn) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.retryOn = retryOn;
+    }
+
+    /**
+     * Get the policy used by the clients, created from {@link Ollama#config}
+     * on first use.
+     *
+     * @return The default policy.
+     */
+    public static synchronized RetryPolicy getDefault() {
+        if (null == defaultPolicy) {
+            OllamaConfig cfg = null == Ollama.config ? new OllamaConfig() : Ollama.config;
+            defaultPolicy = new RetryPolicy(cfg.effectiveRetryAttempts(), cfg.effectiveRetryBackoff(), 16000,
+                    EnumSet.of(Failure.CONNECT, Failure.TIMEOUT, Failure.SERVER, Failure.OLLAMA_ERROR, Failure.NETWORK));
+        }
+        return defaultPolicy;
+    }
+
+    /**
+     * Replace the policy used by the clients.
+     *
+     * @param policy The new default policy.
+     */
+    public static synchronized void setDefault(RetryPolicy policy) {
+        defaultPolicy = policy;
+    }
+
+    /**
+     * Classify a failure.
+     *
+     * @param t What was thrown, possibly wrapped by a future.
+     * @return The classification.
+     */
+    public static Failure classify(Throwable t) {
+        t = unwrap(t);
+        if (t instanceof CircuitBreaker.OpenException) {
+            return Failure.CIRCUIT_OPEN;
+        }
+        if (t instanceof ConnectException || t instanceof HttpConnectTimeoutException) {
+            return Failure.CONNECT;
+        }
+        if (t instanceof HttpTimeoutException) {
+            return Failure.TIMEOUT;
+        }
+        if (t instanceof HttpStatusException) {
+            HttpStatusException hse = (HttpStatusException) t;
+            return hse.isServerError() || 429 == hse.status ? Failure.SERVER : Failure.CLIENT;
+        }
+        if (t instanceof OllamaErrorException) {
+            return Failure.OLLAMA_ERROR;
+        }
+        if (t instanceof JsonProcessingException || t instanceof IOException) {
+            return Failure.NETWORK;
+        }
+        return Failure.OTHER;
+    }
+
+    /**
+     * Strip the wrappers futures put around an exception.
+     *
+     * @param t What was thrown.
+     * @return The actual cause.
+     */
+    public static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && null != t.getCause()) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    /**
+     * One attempt of a call.
+     *
+     * @param <T> The result type.
+     */
+    public interface Call<T> {
+
+        T call() throws Exception;
+    }
+
+    /**
+     * Run a call that is safe to repeat, retrying as the policy allows.
+     *
+     * @param <T> The result type.
+     * @param call The call.
+     * @return What the call returned.
+     * @throws Exception What the last attempt threw.
+     */
+    public <T> T call(Call<T> call) throws Exception {
+        return call(call, null);
+    }
+
+    /**
+     * Run a call, retrying as the policy allows.
+     *
+     * @param <T> The result type.
+     * @param call The call.
+     * @param repeatable Asked after a failure that may have reached the
+     * server: can the call be repeated? For instance false once a streamed
+     * token went to a listener. Null means always.
+     * @return What the call returned.
+     * @throws Exception What the last attempt threw.
+     */
+    public <T> T call(Call<T> call, BooleanSupplier repeatable) throws Exception {
+        earn();
+        for (int attempt = 1;; attempt++) {
+            try {
+                return call.call();
+            } catch (Exception ex) {
+                if (!shouldRetry(ex, attempt, repeatable)) {
+                    throw ex;
+                }
+                Thread.sleep(backoff(attempt));
+            }
+        }
+    }
+
+    /**
+     * Run an asynchronous call that is safe to repeat, retrying as the policy
+     * allows; the waits between attempts do not occupy a thread.
+     *
+     * @param <T> The result type.
+     * @param call Starts one attempt.
+     * @return Completes with the result, or with what the last attempt
+     * failed with.
+     */
+    public <T> CompletableFuture<T> callAsync(Supplier<CompletableFuture<T>> call) {
+        earn();
+        CompletableFuture<T> ret = new CompletableFuture<>();
+        attemptAsync(call, 1, ret);
+        return ret;
+    }
+
+    private <T> void attemptAsync(final Supplier<CompletableFuture<T>> call, final int attempt, final CompletableFuture<T> ret) {
+        call.get().whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable t) {
+                if (null == t) {
+                    ret.complete(result);
+                } else if (shouldRetry(t, attempt, null)) {
+                    CompletableFuture.delayedExecutor(backoff(attempt), TimeUnit.MILLISECONDS).execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            attemptAsync(call, attempt + 1, ret);
+                        }
+                    });
+                } else {
+                    ret.completeExceptionally(unwrap(t));
+                }
+            }
+        });
+    }
+
+    /**
+     * Decide on a retry, spending budget if yes.
+     *
+     * @param t The failure.
+     * @param attempt The attempt that failed, 1 for the first.
+     * @param repeatable See {@link #call(Call, BooleanSupplier)}.
+     * @return True to retry.
+     */
+    boolean shouldRetry(Throwable t, int attempt, BooleanSupplier repeatable) {
+        if (attempt >= maxAttempts) {
+            return false;
+        }
+        Failure f = classify(t);
+        if (!retryOn.contains(f)) {
+            return false;
+        }
+        if (Failure.CONNECT != f && null != repeatable && !repeatable.getAsBoolean()) {
+            return false;
+        }
+        synchronized (this) {
+            if (budget < 1) {
+                return false;
+            }
+            budget -= 1;
+        }
+        Logger.getLogger(RetryPolicy.class.getName()).log(Level.INFO, "Retrying after {0}: {1}", new Object[]{f, unwrap(t)});
+        return true;
+    }
+
+    private synchronized void earn() {
+        budget = Math.min(BUDGET_MAX, budget + BUDGET_RATIO);
+    }
+
+    /**
+     * Time to wait before the next attempt: "full jitter", a random time up
+     * to an exponentially growing cap.
+     *
+     * @param attempt The attempt that failed, 1 for the first.
+     * @return The wait in ms.
+     */
+    long backoff(int attempt) {
+        long cap = Math.min(maxBackoff, initialBackoff << Math.min(20, attempt - 1));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RetryPolicy{" + "maxAttempts=" + maxAttempts + ", initialBackoff=" + initialBackoff
+                + ", maxBackoff=" + maxBackoff + ", retryOn=" + retryOn + ", budget=" + budget + '}';
+    }
+}
@@ -0,0 +1,28 @@
+package nl.infcomtec.jllama;
+
+/**
+ * One result of a nearest neighbour search.
+ *
+ * @author walter
+ */
+public class SearchHit {
+
+    /**
+     * The row (vector number) that was found.
+     */
+    public final int row;
+    /**
+     * Its similarity or distance to the query, see {@link Metric}.
+     */
+    public final double score;
+
+    public SearchHit(int row, double score) {
+        this.row = row;
+        this.score = score;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchHit{" + "row=" + row + ", score=" + score + '}';
+    }
+}
@@ -0,0 +1,191 @@
+package nl.infcomtec.jllama;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Exact nearest neighbour search over an {@link EmbeddingMatrix}: every row
+ * is compared with the query, no approximation.
+ *
+ * The rows are split over the cores with fork-join. Each leaf keeps the
+ * best k it has seen in a small bounded heap, so there is no shared state
+ * and no allocation per row; the heaps are merged as the tasks join. Norms
+ * and sums of the rows come from the matrix, computed once, so cosine and
+ * Pearson cost one dot product per row, like L2 and L1 cost one pass.
+ *
+ * The matrix should not be changed while a search runs.
+ *
+ * @author walter
+ */
+public class SimilaritySearch {
+
+    /**
+     * Rows per leaf task at least; small enough to balance, large enough that
+     * forking costs nothing next to the arithmetic.
+     */
+    public static final int LEAF_ROWS = 1024;
+    private final EmbeddingMatrix matrix;
+    private final ForkJoinPool pool;
+
+    /**
+     * Search with the common fork-join pool.
+     *
+     * @param matrix The vectors to search.
+     */
+    public SimilaritySearch(EmbeddingMatrix matrix) {
+        this(matrix, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Search with a pool of choice.
+     *
+     * @param matrix The vectors to search.
+     * @param pool Runs the search.
+     */
+    public SimilaritySearch(EmbeddingMatrix matrix, ForkJoinPool pool) {
+        this.matrix = matrix;
+        this.pool = pool;
+    }
+
+    /**
+     * Find the rows closest to some embeddings.
+     *
+     * @param query The embeddings to look for, of the same model.
+     * @param k How many to return.
+     * @param metric How to compare.
+     * @return At most k hits, closest first.
+     */
+    public List<SearchHit> search(Embeddings query, int k, Metric metric) {
+        if (!matrix.model.equals(query.request.model)) {
+            throw new RuntimeException("Not the same model");
+        }
+        return search(query.response.embedding, k, metric);
+    }
+
+    /**
+     * Find the rows closest to a vector.
+     *
+     * @param query The vector to look for.
+     * @param k How many to return.
+     * @param metric How to compare.
+     * @return At most k hits, closest first.
+     */
+    public List<SearchHit> search(float[] query, int k, Metric metric) {
+        if (query.length != matrix.dim) {
+            throw new IllegalArgumentException("Query has " + query.length + " values, not " + matrix.dim);
+        }
+        if (k <= 0 || 0 == matrix.rows) {
+            return new ArrayList<>();
+        }
+        k = Math.min(k, matrix.rows);
+        double sum = 0;
+        double squares = 0;
+        for (float f : query) {
+            sum += f;
+            squares += (double) f * f;
+        }
+        Query q = new Query(query, metric, sum, squares, matrix.sums(), matrix.squares());
+        int leaf = Math.max(LEAF_ROWS, matrix.rows / (pool.getParallelism() * 8));
+        TopK top = pool.invoke(new Part(q, k, 0, matrix.rows, leaf));
+        return top.toHits(metric);
+    }
+
+    /**
+     * Everything a leaf needs, shared read-only.
+     */
+    private final class Query {
+
+        final float[] vector;
+        final Metric metric;
+        final double sum;
+        final double squares;
+        final double norm;
+        final double[] rowSums;
+        final double[] rowSquares;
+
+        Query(float[] vector, Metric metric, double sum, double squares, double[] rowSums, double[] rowSquares) {
+            this.vector = vector;
+            this.metric = metric;
+            this.sum = sum;
+            this.squares = squares;
+            this.norm = Math.sqrt(squares);
+            this.rowSums = rowSums;
+            this.rowSquares = rowSquares;
+        }
+
+        /**
+         * Score rows [from, to) into a heap.
+         */
+        void scan(int from, int to, TopK top) {
+            float[] data = matrix.data;
+            int dim = matrix.dim;
+            switch (metric) {
+                case COSINE:
+                    for (int r = from; r < to; r++) {
+                        double den = norm * Math.sqrt(rowSquares[r]);
+                        if (0 != den) {
+                            top.offer(r, VectorMath.dot(vector, 0, data, r * dim, dim) / den);
+                        }
+                    }
+                    break;
+                case L2:
+                    for (int r = from; r < to; r++) {
+                        top.offer(r, -Math.sqrt(VectorMath.l2Squared(vector, 0, data, r * dim, dim)));
+                    }
+                    break;
+                case L1:
+                    for (int r = from; r < to; r++) {
+                        top.offer(r, -VectorMath.l1(vector, 0, data, r * dim, dim));
+                    }
+                    break;
+                case PEARSON:
+                    for (int r = from; r < to; r++) {
+                        double p = VectorMath.pearson(dim, sum, rowSums[r],
+                                VectorMath.dotDouble(vector, 0, data, r * dim, dim), squares, rowSquares[r]);
+                        if (!Double.isNaN(p)) {
+                            top.offer(r, p);
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * A range of rows; splits in two until it is small enough to scan.
+     */
+    private final class Part extends RecursiveTask<TopK> {
+
+        private static final long serialVersionUID = 1L;
+        private final Query q;
+        private final int k;
+        private final int from;
+        private final int to;
+        private final int leaf;
+
+        Part(Query q, int k, int from, int to, int leaf) {
+            this.q = q;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+            this.leaf = leaf;
+        }
+
+        @Override
+        protected TopK compute() {
+            if (to - from <= leaf) {
+                TopK top = new TopK(k);
+                q.scan(from, to, top);
+                return top;
+            }
+            int mid = (from + to) >>> 1;
+            Part right = new Part(q, k, mid, to, leaf);
+            right.fork();
+            TopK top = new Part(q, k, from, mid, leaf).compute();
+            top.addAll(right.join());
+            return top;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package nl.infcomtec.jllama;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical requests that are in flight at the same time: the first
+ * caller (the leader) does the server call, everyone who asks the same while
+ * it runs waits for, and gets, the same result. For a streamed request the
+ * parts received so far are replayed to a late joiner, then it gets the rest
+ * live.
+ *
+ * Only meant for deterministic requests, where one answer is as good as
+ * another. Waiters share the Response object, treat it as read-only.
+ *
+ * @author walter
+ */
+public class SingleFlight {
+
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    /**
+     * @return The number of distinct requests in flight.
+     */
+    public int inFlight() {
+        return flights.size();
+    }
+
+    /**
+     * Run a call, or wait for the identical one in flight.
+     *
+     * @param key Identity of the request, see {@link RequestKey}.
+     * @param call Does the server call.
+     * @return The response.
+     * @throws Exception What the call threw.
+     */
+    public Response call(String key, RetryPolicy.Call<Response> call) throws Exception {
+        Flight f = new Flight();
+        Flight prev = flights.putIfAbsent(key, f);
+        if (null != prev) {
+            return await(prev.result);
+        }
+        try {
+            Response ret = call.call();
+            flights.remove(key, f);
+            f.result.complete(ret);
+            return ret;
+        } catch (Exception ex) {
+            flights.remove(key, f);
+            f.result.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Start an asynchronous call, or join the identical one in flight.
+     *
+     * @param key Identity of the request, see {@link RequestKey}.
+     * @param call Starts the server call.
+     * @return Completes with the response; cancelling it does not affect
+     * other waiters.
+     */
+    public CompletableFuture<Response> callAsync(final String key, Supplier<CompletableFuture<Response>> call) {
+        final Flight f = new Flight();
+        Flight prev = flights.putIfAbsent(key, f);
+        if (null != prev) {
+            return own(prev.result);
+        }
+        call.get().whenComplete(new BiConsumer<Response, Throwable>() {
+            @Override
+            public void accept(Response resp, Throwable t) {
+                flights.remove(key, f);
+                if (null == t) {
+                    f.result.complete(resp);
+                } else {
+                    f.result.completeExceptionally(RetryPolicy.unwrap(t));
+                }
+            }
+        });
+        return own(f.result);
+    }
+
+    /**
+     * Run a streamed call, or join the identical one in flight. The leader's
+     * thread runs the stream until every listener has stopped it or it ends.
+     *
+     * @param key Identity of the request, see {@link RequestKey}.
+     * @param listener Receives the parts, replayed ones first.
+     * @param call Does the server call, passing parts to the given listener.
+     * @return The final response, or null if this listener stopped the
+     * stream.
+     * @throws Exception What the call threw.
+     */
+    public Response stream(String key, OllamaClient.StreamListener listener, StreamCall call) throws Exception {
+        Flight f = new Flight();
+        Flight prev = flights.putIfAbsent(key, f);
+        if (null != prev) {
+            Waiter w = prev.join(listener);
+            if (null == w) {
+                // flight just ended, do our own
+                return stream(key, listener, call);
+            }
+            return await(w.done);
+        }
+        Waiter w = f.join(listener);
+        try {
+            Response ret = call.call(f);
+            flights.remove(key, f);
+            f.finish(ret, null);
+        } catch (Exception ex) {
+            flights.remove(key, f);
+            f.finish(null, ex);
+        }
+        return await(w.done);
+    }
+
+    /**
+     * A streamed server call.
+     */
+    public interface StreamCall {
+
+        Response call(OllamaClient.StreamListener fanOut) throws Exception;
+    }
+
+    private static Response await(CompletableFuture<Response> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            throw t instanceof Exception ? (Exception) t : ex;
+        }
+    }
+
+    private static CompletableFuture<Response> own(CompletableFuture<Response> shared) {
+        return shared.thenApply(new Function<Response, Response>() {
+            @Override
+            public Response apply(Response r) {
+                return r;
+            }
+        });
+    }
+
+    /**
+     * A listener waiting for a streamed flight. Parts reach it in order, one
+     * thread at a time, from its own replay or from the stream, whichever
+     * has the next one.
+     */
+    private static class Waiter {
+
+        final OllamaClient.StreamListener listener;
+        final CompletableFuture<Response> done = new CompletableFuture<>();
+        /**
+         * Parts passed to the listener so far; guarded by this waiter.
+         */
+        private int delivered;
+        private boolean stopped;
+
+        Waiter(OllamaClient.StreamListener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Pass the parts of a flight the listener has not had yet, without
+         * holding the flight's lock.
+         */
+        synchronized void catchUp(Flight flight) {
+            while (!stopped) {
+                StreamedResponse next = flight.part(delivered);
+                if (null == next) {
+                    return;
+                }
+                if (!listener.onResponseReceived(next)) {
+                    stopped = true;
+                    flight.leave(this);
+                    done.complete(null);
+                    return;
+                }
+                delivered++;
+            }
+        }
+    }
+
+    /**
+     * One request in flight.
+     */
+    private static class Flight implements OllamaClient.StreamListener {
+
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        private final ArrayList<StreamedResponse> parts = new ArrayList<>();
+        private final ArrayList<Waiter> waiters = new ArrayList<>();
+        private boolean finished;
+
+        /**
+         * Add a listener, replaying what was received so far.
+         *
+         * @return The waiter, or null if the flight already finished.
+         */
+        Waiter join(OllamaClient.StreamListener listener) {
+            Waiter w = new Waiter(listener);
+            synchronized (this) {
+                if (finished) {
+                    return null;
+                }
+                waiters.add(w);
+            }
+            w.catchUp(this);
+            return w;
+        }
+
+        synchronized StreamedResponse part(int i) {
+            return i < parts.size() ? parts.get(i) : null;
+        }
+
+        synchronized void leave(Waiter w) {
+            waiters.remove(w);
+        }
+
+        @Override
+        public boolean onResponseReceived(StreamedResponse responsePart) {
+            ArrayList<Waiter> snapshot;
+            synchronized (this) {
+                parts.add(responsePart);
+                snapshot = new ArrayList<>(waiters);
+            }
+            // a slow listener holds up the stream, but not joins or other locks
+            for (Waiter w : snapshot) {
+                w.catchUp(this);
+            }
+            synchronized (this) {
+                // nobody listening any more, abort the stream
+                return !waiters.isEmpty();
+            }
+        }
+
+        void finish(Response resp, Exception ex) {
+            ArrayList<Waiter> snapshot;
+            synchronized (this) {
+                finished = true;
+                snapshot = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+            for (Waiter w : snapshot) {
+                if (null == ex) {
+                    w.done.complete(resp);
+                } else {
+                    w.done.completeExceptionally(ex);
+                }
+            }
+            if (null == ex) {
+                result.complete(resp);
+            } else {
+                result.completeExceptionally(ex);
+            }
+        }
+    }
+}
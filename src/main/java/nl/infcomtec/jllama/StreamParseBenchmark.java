@@ -0,0 +1,100 @@
+package nl.infcomtec.jllama;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client-side overhead of parsing a streamed generate response, the old
+ * line-by-line way versus the streaming parser in
+ * {@link OllamaClient#readStream}. No server needed, the NDJSON body is
+ * synthesized in memory so only parsing is measured.
+ *
+ * @author walter
+ */
+public class StreamParseBenchmark {
+
+    private static final int TOKENS = 20000;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        byte[] body = synthesize(TOKENS);
+        ObjectMapper mapper = OllamaJson.MAPPER;
+        OllamaClient.StreamListener sink = new OllamaClient.StreamListener() {
+            @Override
+            public boolean onResponseReceived(StreamedResponse responsePart) {
+                return true;
+            }
+        };
+        for (int warm = 0; warm < 3; warm++) {
+            lineByLine(mapper, body, sink);
+            OllamaClient.readStream(new ByteArrayInputStream(body), sink);
+        }
+        long tLines = 0;
+        long tStream = 0;
+        for (int r = 0; r < ROUNDS; r++) {
+            long t0 = System.nanoTime();
+            lineByLine(mapper, body, sink);
+            long t1 = System.nanoTime();
+            OllamaClient.readStream(new ByteArrayInputStream(body), sink);
+            long t2 = System.nanoTime();
+            tLines += t1 - t0;
+            tStream += t2 - t1;
+        }
+        System.out.format("Tokens per round: %d, rounds: %d%n", TOKENS, ROUNDS);
+        System.out.format("readLine + readValue per line: %,.0f tokens/s%n", 1E9 * TOKENS * ROUNDS / tLines);
+        System.out.format("single JsonParser on stream:   %,.0f tokens/s%n", 1E9 * TOKENS * ROUNDS / tStream);
+    }
+
+    /**
+     * A typical streamed body: one small object per token and a final one
+     * with the statistics and a context.
+     */
+    private static byte[] synthesize(int tokens) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < tokens; i++) {
+            sb.append("{\"model\":\"mistral:latest\",\"created_at\":\"2024-03-01T12:00:00.123456789Z\",\"response\":\" tok")
+                    .append(i % 100).append("\",\"done\":false}\n");
+        }
+        sb.append("{\"model\":\"mistral:latest\",\"created_at\":\"2024-03-01T12:00:01.123456789Z\",\"response\":\"\",\"done\":true,\"context\":[");
+        for (int i = 0; i < 2048; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(i * 7);
+        }
+        sb.append("],\"total_duration\":1000,\"eval_count\":").append(tokens).append(",\"eval_duration\":900}\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The previous implementation, kept here for comparison.
+     */
+    private static Response lineByLine(ObjectMapper mapper, byte[] body, OllamaClient.StreamListener listener) throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8))) {
+            String responseLine;
+            StringBuilder fullResponse = new StringBuilder();
+            while ((responseLine = br.readLine()) != null) {
+                if (!responseLine.trim().isEmpty()) {
+                    if (responseLine.startsWith("{\"error")) {
+                        return null;
+                    }
+                    Response val = mapper.readValue(responseLine, Response.class);
+                    if (val.done) {
+                        val.response = fullResponse.toString();
+                        return val;
+                    } else {
+                        fullResponse.append(val.response);
+                        if (!listener.onResponseReceived(val)) {
+                            return null;
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
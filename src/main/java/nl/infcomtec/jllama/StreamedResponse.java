@@ -20,5 +20,9 @@ public class StreamedResponse {
     public boolean done;
     @JsonProperty(value = "done_reason")
     public String doneReason;
+    /**
+     * Set instead of the above if Ollama reports an error.
+     */
+    public String error;
 
 }
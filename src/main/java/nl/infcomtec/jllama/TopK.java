@@ -0,0 +1,135 @@
+package nl.infcomtec.jllama;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The k highest ranks seen, as a binary min-heap in two arrays so the
+ * weakest is at the root and a row that does not make it costs one
+ * compare. Used by the searches, one per thread, merged when done.
+ *
+ * @author walter
+ */
+final class TopK {
+
+    /**
+     * Arrays start at most this long and grow to k as rows come in; a part
+     * of a search often sees far fewer rows than the k asked for.
+     */
+    private static final int INITIAL = 64;
+    private final int k;
+    private int[] rows;
+    private double[] ranks;
+    private int size;
+
+    TopK(int k) {
+        this.k = k;
+        this.rows = new int[Math.min(k, INITIAL)];
+        this.ranks = new double[rows.length];
+    }
+
+    /**
+     * @param row A row.
+     * @param rank Its rank, higher is closer.
+     */
+    void offer(int row, double rank) {
+        if (size < k) {
+            if (size == rows.length) {
+                int n = (int) Math.min(2L * size, k);
+                rows = Arrays.copyOf(rows, n);
+                ranks = Arrays.copyOf(ranks, n);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!weaker(rank, row, ranks[parent], rows[parent])) {
+                    break;
+                }
+                rows[i] = rows[parent];
+                ranks[i] = ranks[parent];
+                i = parent;
+            }
+            rows[i] = row;
+            ranks[i] = rank;
+        } else if (weaker(ranks[0], rows[0], rank, row)) {
+            siftDown(row, rank);
+        }
+    }
+
+    /**
+     * Put a row at the root and move it down to its place.
+     */
+    private void siftDown(int row, double rank) {
+        int i = 0;
+        while (true) {
+            int c = 2 * i + 1;
+            if (c >= size) {
+                break;
+            }
+            if (c + 1 < size && weaker(ranks[c + 1], rows[c + 1], ranks[c], rows[c])) {
+                c++;
+            }
+            if (!weaker(ranks[c], rows[c], rank, row)) {
+                break;
+            }
+            rows[i] = rows[c];
+            ranks[i] = ranks[c];
+            i = c;
+        }
+        rows[i] = row;
+        ranks[i] = rank;
+    }
+
+    /**
+     * Ties go to the lower row, so results do not depend on how the work
+     * was split.
+     */
+    private static boolean weaker(double rankA, int rowA, double rankB, int rowB) {
+        return rankA < rankB || rankA == rankB && rowA > rowB;
+    }
+
+    void addAll(TopK other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.rows[i], other.ranks[i]);
+        }
+    }
+
+    /**
+     * Empties the heap.
+     *
+     * @param metric To turn ranks back into scores.
+     * @return The hits, closest first.
+     */
+    List<SearchHit> toHits(Metric metric) {
+        SearchHit[] sorted = new SearchHit[size];
+        // popping a min-heap yields the weakest first
+        while (size > 0) {
+            SearchHit hit = new SearchHit(rows[0], metric.rank(ranks[0]));
+            size--;
+            if (size > 0) {
+                siftDown(rows[size], ranks[size]);
+            }
+            sorted[size] = hit;
+        }
+        return new ArrayList<>(Arrays.asList(sorted));
+    }
+
+    /**
+     * Empties the heap.
+     *
+     * @return The rows, closest first.
+     */
+    int[] toRows() {
+        int[] ret = new int[size];
+        while (size > 0) {
+            int row = rows[0];
+            size--;
+            if (size > 0) {
+                siftDown(rows[size], ranks[size]);
+            }
+            ret[size] = row;
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,391 @@
+package nl.infcomtec.jllama;
+
+import java.nio.FloatBuffer;
+
+/**
+ * The inner loops of vector similarity, for float vectors stored in arrays
+ * (possibly several per array, as in an {@link EmbeddingMatrix}).
+ *
+ * The loops are unrolled four times with independent accumulators, which
+ * breaks the dependency chain of a single running sum so the CPU can keep
+ * several multiply-adds in flight; the JIT compiles them to tight code
+ * without any bounds checks in the unrolled part. Sums are kept in float,
+ * which for vectors of a few thousand elements of embedding magnitude
+ * (around 1) costs no meaningful precision. Pearson, which subtracts large
+ * similar numbers, sums in double.
+ *
+ * The FloatBuffer variants read the second vector where it is, for instance
+ * in a mapped file ({@link VectorStore}), with absolute gets that do not
+ * touch the buffer's position, so one buffer can serve many threads.
+ *
+ * @author walter
+ */
+public final class VectorMath {
+
+    private VectorMath() {
+    }
+
+    /**
+     * @param a A vector.
+     * @param b A vector of the same length.
+     * @return The dot product.
+     */
+    public static float dot(float[] a, float[] b) {
+        return dot(a, 0, b, 0, a.length);
+    }
+
+    /**
+     * Dot product of two stretches of arrays.
+     *
+     * @param a First array.
+     * @param aOff Start in a.
+     * @param b Second array.
+     * @param bOff Start in b.
+     * @param n Number of elements.
+     * @return The dot product.
+     */
+    public static float dot(float[] a, int aOff, float[] b, int bOff, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int end = n & ~3; i < end; i += 4) {
+            s0 += a[aOff + i] * b[bOff + i];
+            s1 += a[aOff + i + 1] * b[bOff + i + 1];
+            s2 += a[aOff + i + 2] * b[bOff + i + 2];
+            s3 += a[aOff + i + 3] * b[bOff + i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[aOff + i] * b[bOff + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Dot product accumulated in double, for sums that other sums are
+     * subtracted from, like the cross term of Pearson.
+     *
+     * @param a First array.
+     * @param aOff Start in a.
+     * @param b Second array.
+     * @param bOff Start in b.
+     * @param n Number of elements.
+     * @return The dot product.
+     */
+    public static double dotDouble(float[] a, int aOff, float[] b, int bOff, int n) {
+        double s0 = 0, s1 = 0;
+        int i = 0;
+        for (int end = n & ~1; i < end; i += 2) {
+            s0 += (double) a[aOff + i] * b[bOff + i];
+            s1 += (double) a[aOff + i + 1] * b[bOff + i + 1];
+        }
+        if (i < n) {
+            s0 += (double) a[aOff + i] * b[bOff + i];
+        }
+        return s0 + s1;
+    }
+
+    /**
+     * Sum of squares, the square of the L2 norm.
+     *
+     * @param a The array.
+     * @param off Start in a.
+     * @param n Number of elements.
+     * @return The sum of squares.
+     */
+    public static float sumOfSquares(float[] a, int off, int n) {
+        return dot(a, off, a, off, n);
+    }
+
+    /**
+     * Plain sum.
+     *
+     * @param a The array.
+     * @param off Start in a.
+     * @param n Number of elements.
+     * @return The sum.
+     */
+    public static float sum(float[] a, int off, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int end = n & ~3; i < end; i += 4) {
+            s0 += a[off + i];
+            s1 += a[off + i + 1];
+            s2 += a[off + i + 2];
+            s3 += a[off + i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[off + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Squared Euclidean (L2) distance.
+     *
+     * @param a First array.
+     * @param aOff Start in a.
+     * @param b Second array.
+     * @param bOff Start in b.
+     * @param n Number of elements.
+     * @return The squared distance.
+     */
+    public static float l2Squared(float[] a, int aOff, float[] b, int bOff, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int end = n & ~3; i < end; i += 4) {
+            float d0 = a[aOff + i] - b[bOff + i];
+            float d1 = a[aOff + i + 1] - b[bOff + i + 1];
+            float d2 = a[aOff + i + 2] - b[bOff + i + 2];
+            float d3 = a[aOff + i + 3] - b[bOff + i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < n; i++) {
+            float d = a[aOff + i] - b[bOff + i];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Manhattan (L1) distance.
+     *
+     * @param a First array.
+     * @param aOff Start in a.
+     * @param b Second array.
+     * @param bOff Start in b.
+     * @param n Number of elements.
+     * @return The distance.
+     */
+    public static float l1(float[] a, int aOff, float[] b, int bOff, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int end = n & ~3; i < end; i += 4) {
+            s0 += Math.abs(a[aOff + i] - b[bOff + i]);
+            s1 += Math.abs(a[aOff + i + 1] - b[bOff + i + 1]);
+            s2 += Math.abs(a[aOff + i + 2] - b[bOff + i + 2]);
+            s3 += Math.abs(a[aOff + i + 3] - b[bOff + i + 3]);
+        }
+        for (; i < n; i++) {
+            s0 += Math.abs(a[aOff + i] - b[bOff + i]);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Cosine similarity in one pass: the dot product and both norms are
+     * accumulated together.
+     *
+     * @param a First array.
+     * @param aOff Start in a.
+     * @param b Second array.
+     * @param bOff Start in b.
+     * @param n Number of elements.
+     * @return The cosine, NaN if a norm is 0.
+     */
+    public static double cosine(float[] a, int aOff, float[] b, int bOff, int n) {
+        float d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+        float a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+        float b0 = 0, b1 = 0, b2 = 0, b3 = 0;
+        int i = 0;
+        for (int end = n & ~3; i < end; i += 4) {
+            float x0 = a[aOff + i];
+            float x1 = a[aOff + i + 1];
+            float x2 = a[aOff + i + 2];
+            float x3 = a[aOff + i + 3];
+            float y0 = b[bOff + i];
+            float y1 = b[bOff + i + 1];
+            float y2 = b[bOff + i + 2];
+            float y3 = b[bOff + i + 3];
+            d0 += x0 * y0;
+            d1 += x1 * y1;
+            d2 += x2 * y2;
+            d3 += x3 * y3;
+            a0 += x0 * x0;
+            a1 += x1 * x1;
+            a2 += x2 * x2;
+            a3 += x3 * x3;
+            b0 += y0 * y0;
+            b1 += y1 * y1;
+            b2 += y2 * y2;
+            b3 += y3 * y3;
+        }
+        for (; i < n; i++) {
+            float x = a[aOff + i];
+            float y = b[bOff + i];
+            d0 += x * y;
+            a0 += x * x;
+            b0 += y * y;
+        }
+        double den = Math.sqrt((double) ((a0 + a1) + (a2 + a3)) * ((b0 + b1) + (b2 + b3)));
+        return 0 == den ? Double.NaN : ((d0 + d1) + (d2 + d3)) / den;
+    }
+
+    /**
+     * Pearson correlation in one pass, summing in double.
+     *
+     * @param a First array.
+     * @param aOff Start in a.
+     * @param b Second array.
+     * @param bOff Start in b.
+     * @param n Number of elements.
+     * @return The correlation, NaN if either vector is constant.
+     */
+    public static double pearson(float[] a, int aOff, float[] b, int bOff, int n) {
+        double sa0 = 0, sb0 = 0, sab0 = 0, saa0 = 0, sbb0 = 0;
+        double sa1 = 0, sb1 = 0, sab1 = 0, saa1 = 0, sbb1 = 0;
+        int i = 0;
+        for (int end = n & ~1; i < end; i += 2) {
+            double x0 = a[aOff + i];
+            double x1 = a[aOff + i + 1];
+            double y0 = b[bOff + i];
+            double y1 = b[bOff + i + 1];
+            sa0 += x0;
+            sa1 += x1;
+            sb0 += y0;
+            sb1 += y1;
+            sab0 += x0 * y0;
+            sab1 += x1 * y1;
+            saa0 += x0 * x0;
+            saa1 += x1 * x1;
+            sbb0 += y0 * y0;
+            sbb1 += y1 * y1;
+        }
+        if (i < n) {
+            double x = a[aOff + i];
+            double y = b[bOff + i];
+            sa0 += x;
+            sb0 += y;
+            sab0 += x * y;
+            saa0 += x * x;
+            sbb0 += y * y;
+        }
+        return pearson(n, sa0 + sa1, sb0 + sb1, sab0 + sab1, saa0 + saa1, sbb0 + sbb1);
+    }
+
+    /**
+     * Pearson correlation from sums.
+     *
+     * @param n Number of elements.
+     * @param sa Sum of a.
+     * @param sb Sum of b.
+     * @param sab Sum of a * b.
+     * @param saa Sum of a * a.
+     * @param sbb Sum of b * b.
+     * @return The correlation, NaN if either vector is constant.
+     */
+    public static double pearson(int n, double sa, double sb, double sab, double saa, double sbb) {
+        double cov = sab - sa * sb / n;
+        double va = saa - sa * sa / n;
+        double vb = sbb - sb * sb / n;
+        if (va <= 0 || vb <= 0) {
+            return Double.NaN;
+        }
+        return cov / Math.sqrt(va * vb);
+    }
+
+    /**
+     * Dot product with a vector in a buffer.
+     *
+     * @param a First array.
+     * @param aOff Start in a.
+     * @param b Buffer with the second vector.
+     * @param bOff Start in b (absolute index).
+     * @param n Number of elements.
+     * @return The dot product.
+     */
+    public static float dot(float[] a, int aOff, FloatBuffer b, int bOff, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int end = n & ~3; i < end; i += 4) {
+            s0 += a[aOff + i] * b.get(bOff + i);
+            s1 += a[aOff + i + 1] * b.get(bOff + i + 1);
+            s2 += a[aOff + i + 2] * b.get(bOff + i + 2);
+            s3 += a[aOff + i + 3] * b.get(bOff + i + 3);
+        }
+        for (; i < n; i++) {
+            s0 += a[aOff + i] * b.get(bOff + i);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Dot product with a vector in a buffer, accumulated in double, see
+     * {@link #dotDouble(float[], int, float[], int, int)}.
+     *
+     * @param a First array.
+     * @param aOff Start in a.
+     * @param b Buffer with the second vector.
+     * @param bOff Start in b (absolute index).
+     * @param n Number of elements.
+     * @return The dot product.
+     */
+    public static double dotDouble(float[] a, int aOff, FloatBuffer b, int bOff, int n) {
+        double s0 = 0, s1 = 0;
+        int i = 0;
+        for (int end = n & ~1; i < end; i += 2) {
+            s0 += (double) a[aOff + i] * b.get(bOff + i);
+            s1 += (double) a[aOff + i + 1] * b.get(bOff + i + 1);
+        }
+        if (i < n) {
+            s0 += (double) a[aOff + i] * b.get(bOff + i);
+        }
+        return s0 + s1;
+    }
+
+    /**
+     * Squared Euclidean distance to a vector in a buffer.
+     *
+     * @param a First array.
+     * @param aOff Start in a.
+     * @param b Buffer with the second vector.
+     * @param bOff Start in b (absolute index).
+     * @param n Number of elements.
+     * @return The squared distance.
+     */
+    public static float l2Squared(float[] a, int aOff, FloatBuffer b, int bOff, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int end = n & ~3; i < end; i += 4) {
+            float d0 = a[aOff + i] - b.get(bOff + i);
+            float d1 = a[aOff + i + 1] - b.get(bOff + i + 1);
+            float d2 = a[aOff + i + 2] - b.get(bOff + i + 2);
+            float d3 = a[aOff + i + 3] - b.get(bOff + i + 3);
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < n; i++) {
+            float d = a[aOff + i] - b.get(bOff + i);
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Manhattan distance to a vector in a buffer.
+     *
+     * @param a First array.
+     * @param aOff Start in a.
+     * @param b Buffer with the second vector.
+     * @param bOff Start in b (absolute index).
+     * @param n Number of elements.
+     * @return The distance.
+     */
+    public static float l1(float[] a, int aOff, FloatBuffer b, int bOff, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int end = n & ~3; i < end; i += 4) {
+            s0 += Math.abs(a[aOff + i] - b.get(bOff + i));
+            s1 += Math.abs(a[aOff + i + 1] - b.get(bOff + i + 1));
+            s2 += Math.abs(a[aOff + i + 2] - b.get(bOff + i + 2));
+            s3 += Math.abs(a[aOff + i + 3] - b.get(bOff + i + 3));
+        }
+        for (; i < n; i++) {
+            s0 += Math.abs(a[aOff + i] - b.get(bOff + i));
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+}
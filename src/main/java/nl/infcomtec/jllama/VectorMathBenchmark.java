@@ -0,0 +1,139 @@
+package nl.infcomtec.jllama;
+
+import java.util.Random;
+
+/**
+ * The similarity kernels of {@link VectorMath} versus the straightforward
+ * loops {@link Embeddings} used before, at the sizes of common embedding
+ * models: 384 (all-minilm), 768 (nomic-embed-text) and 1024
+ * (mxbai-embed-large). No server needed, the vectors are random.
+ *
+ * @author walter
+ */
+public class VectorMathBenchmark {
+
+    private static final int[] DIMS = {384, 768, 1024};
+    private static final int VECTORS = 200;
+    private static final int ROUNDS = 10;
+    private static final String[] METRICS = {"cosine", "euclidian", "manhattan", "pearson"};
+    private static volatile double sink;
+
+    public static void main(String[] args) {
+        Random rnd = new Random(42);
+        for (int dim : DIMS) {
+            float[][] v = new float[VECTORS][dim];
+            for (float[] row : v) {
+                for (int i = 0; i < dim; i++) {
+                    row[i] = (float) rnd.nextGaussian() * 0.05f;
+                }
+            }
+            for (int m = 0; m < METRICS.length; m++) {
+                for (int warm = 0; warm < 5; warm++) {
+                    run(v, m, false);
+                    run(v, m, true);
+                }
+                long tNaive = 0;
+                long tKernel = 0;
+                for (int r = 0; r < ROUNDS; r++) {
+                    long t0 = System.nanoTime();
+                    run(v, m, false);
+                    long t1 = System.nanoTime();
+                    run(v, m, true);
+                    long t2 = System.nanoTime();
+                    tNaive += t1 - t0;
+                    tKernel += t2 - t1;
+                }
+                double n = (double) VECTORS * VECTORS * ROUNDS;
+                System.out.format("dim %4d %-9s: plain loop %6.1f ns, VectorMath %6.1f ns, %.2fx%n",
+                        dim, METRICS[m], tNaive / n, tKernel / n, (double) tNaive / tKernel);
+            }
+        }
+    }
+
+    private static void run(float[][] v, int metric, boolean kernel) {
+        double s = 0;
+        for (float[] a : v) {
+            for (float[] b : v) {
+                s += kernel ? kernel(metric, a, b) : naive(metric, a, b);
+            }
+        }
+        sink = s;
+    }
+
+    private static double kernel(int metric, float[] a, float[] b) {
+        int n = a.length;
+        switch (metric) {
+            case 0:
+                return VectorMath.cosine(a, 0, b, 0, n);
+            case 1:
+                return Math.sqrt(VectorMath.l2Squared(a, 0, b, 0, n));
+            case 2:
+                return VectorMath.l1(a, 0, b, 0, n);
+            default:
+                return VectorMath.pearson(a, 0, b, 0, n);
+        }
+    }
+
+    private static double naive(int metric, float[] a, float[] b) {
+        switch (metric) {
+            case 0:
+                return naiveCosine(a, b);
+            case 1:
+                return naiveL2(a, b);
+            case 2:
+                return naiveL1(a, b);
+            default:
+                return naivePearson(a, b);
+        }
+    }
+
+    private static double naiveCosine(float[] a, float[] b) {
+        double dot = 0;
+        double na = 0;
+        double nb = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += (double) a[i] * b[i];
+            na += (double) a[i] * a[i];
+            nb += (double) b[i] * b[i];
+        }
+        return dot / (Math.sqrt(na) * Math.sqrt(nb));
+    }
+
+    private static double naiveL2(float[] a, float[] b) {
+        double s = 0;
+        for (int i = 0; i < a.length; i++) {
+            s += Math.pow((double) a[i] - b[i], 2);
+        }
+        return Math.sqrt(s);
+    }
+
+    private static double naiveL1(float[] a, float[] b) {
+        double s = 0;
+        for (int i = 0; i < a.length; i++) {
+            s += Math.abs((double) a[i] - b[i]);
+        }
+        return s;
+    }
+
+    private static double naivePearson(float[] a, float[] b) {
+        double ma = 0;
+        double mb = 0;
+        for (int i = 0; i < a.length; i++) {
+            ma += a[i];
+            mb += b[i];
+        }
+        ma /= a.length;
+        mb /= b.length;
+        double sp = 0;
+        double sa = 0;
+        double sb = 0;
+        for (int i = 0; i < a.length; i++) {
+            double da = a[i] - ma;
+            double db = b[i] - mb;
+            sp += da * db;
+            sa += da * da;
+            sb += db * db;
+        }
+        return sp / (Math.sqrt(sa) * Math.sqrt(sb));
+    }
+}
@@ -0,0 +1,469 @@
+package nl.infcomtec.jllama;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only file of embedding vectors of one model, searched where it lies.
+ *
+ * <pre>
+ * header:  "JLVS" version dim modelLength model, padded to 64 bytes
+ * records: [long metadata offset][double sum][double sum of squares][float x dim]
+ * </pre>
+ * All little-endian. The records have a fixed stride, so vector i is found
+ * by arithmetic and the number of vectors follows from the file size; a torn
+ * last record is dropped on open. The sums let cosine and Pearson be one dot
+ * product per vector. Metadata (any text, like JSON or a file name) is in a
+ * side file, name + ".meta", as [int length][UTF-8].
+ *
+ * The file is mapped in segments of whole records that the OS pages in as
+ * they are touched, so opening takes no time whatever the size, and a search
+ * reads the vectors in the mapping, never copying them onto the heap. The
+ * store is also the {@link QuantizedIndex.Originals} for a quantized index
+ * over it.
+ *
+ * @author walter
+ */
+public class VectorStore implements Closeable, QuantizedIndex.Originals {
+
+    private static final int MAGIC = 0x4A4C5653; // "JLVS"
+    private static final int VERSION = 1;
+    private static final int PREFIX = 24;
+    /**
+     * Upper bound of a mapped segment; a mapping is limited to 2GB.
+     */
+    private static final long SEGMENT_BYTES = 1L << 30;
+    public final File file;
+    public final String model;
+    public final int dim;
+    private final int header;
+    private final int stride;
+    /**
+     * Records per segment.
+     */
+    private final int perSegment;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final RandomAccessFile metaRaf;
+    private final FileChannel meta;
+    private volatile int count;
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * Open or create a store.
+     *
+     * @param file The vector file.
+     * @param model The model; must match an existing file.
+     * @param dim Length of the vectors; must match an existing file.
+     * @return The store.
+     * @throws IOException If it cannot be opened or is for other vectors.
+     */
+    public static VectorStore open(File file, String model, int dim) throws IOException {
+        VectorStore ret = new VectorStore(file, model, dim);
+        if (!ret.model.equals(model) || ret.dim != dim) {
+            ret.close();
+            throw new IOException(file + " holds " + ret.dim + " dimensional vectors of " + ret.model
+                    + ", not " + dim + " of " + model);
+        }
+        return ret;
+    }
+
+    /**
+     * Open an existing store.
+     *
+     * @param file The vector file.
+     * @return The store.
+     * @throws IOException If it cannot be opened or is not a store.
+     */
+    public static VectorStore open(File file) throws IOException {
+        if (!file.exists()) {
+            throw new IOException(file + " does not exist");
+        }
+        return new VectorStore(file, null, 0);
+    }
+
+    private VectorStore(File file, String model, int dim) throws IOException {
+        this.file = file;
+        if (null != file.getParentFile()) {
+            file.getParentFile().mkdirs();
+        }
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        metaRaf = new RandomAccessFile(new File(file.getPath() + ".meta"), "rw");
+        meta = metaRaf.getChannel();
+        try {
+            if (0 == channel.size()) {
+                if (null == model || dim <= 0) {
+                    throw new IOException(file + " is empty");
+                }
+                byte[] name = model.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer hdr = ByteBuffer.allocate(align(14 + name.length)).order(ByteOrder.LITTLE_ENDIAN);
+                hdr.putInt(MAGIC).putInt(VERSION).putInt(dim).putShort((short) name.length).put(name);
+                hdr.clear();
+                channel.write(hdr, 0);
+            }
+            ByteBuffer hdr = ByteBuffer.allocate(14).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(hdr, 0);
+            hdr.flip();
+            if (hdr.remaining() < 14 || MAGIC != hdr.getInt() || VERSION != hdr.getInt()) {
+                throw new IOException(file + " is not a vector store (version " + VERSION + ")");
+            }
+            this.dim = hdr.getInt();
+            ByteBuffer name = ByteBuffer.allocate(hdr.getShort() & 0xFFFF);
+            channel.read(name, 14);
+            this.model = new String(name.array(), StandardCharsets.UTF_8);
+            this.header = align(14 + name.capacity());
+            this.stride = PREFIX + 4 * this.dim;
+            this.perSegment = (int) Math.max(1, SEGMENT_BYTES / stride);
+            long size = channel.size();
+            long n = (size - header) / stride;
+            if (n > Integer.MAX_VALUE) {
+                throw new IOException(file + " has more than " + Integer.MAX_VALUE + " vectors");
+            }
+            long end = header + n * stride;
+            if (end < size) {
+                Logger.getLogger(VectorStore.class.getName()).log(Level.WARNING, "Dropping torn record at {0} of {1}", new Object[]{end, file});
+                channel.truncate(end);
+            }
+            count = (int) n;
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    private static int align(int n) {
+        return (n + 63) & ~63;
+    }
+
+    /**
+     * @return Number of vectors.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Append the vector of some embeddings.
+     *
+     * @param e Embeddings of our model.
+     * @param metadata What the vector stands for, may be null.
+     * @return Its id, vectors are numbered from 0 in order.
+     * @throws IOException If writing fails.
+     */
+    public int append(Embeddings e, String metadata) throws IOException {
+        if (!model.equals(e.request.model)) {
+            throw new RuntimeException("Not the same model");
+        }
+        return append(e.response.embedding, metadata);
+    }
+
+    /**
+     * Append a vector. Not forced to disk, see {@link #flush()}.
+     *
+     * @param vector The vector.
+     * @param metadata What the vector stands for, may be null.
+     * @return Its id, vectors are numbered from 0 in order.
+     * @throws IOException If writing fails.
+     */
+    public synchronized int append(float[] vector, String metadata) throws IOException {
+        if (vector.length != dim) {
+            throw new IllegalArgumentException("Vector has " + vector.length + " values, not " + dim);
+        }
+        long metaAt = -1;
+        if (null != metadata) {
+            // metadata first: a crash in between leaves harmless unused bytes
+            byte[] text = metadata.getBytes(StandardCharsets.UTF_8);
+            metaAt = meta.size();
+            ByteBuffer mb = ByteBuffer.allocate(4 + text.length).order(ByteOrder.LITTLE_ENDIAN);
+            mb.putInt(text.length).put(text).flip();
+            while (mb.hasRemaining()) {
+                meta.write(mb, metaAt + mb.position());
+            }
+        }
+        double sum = 0;
+        double squares = 0;
+        ByteBuffer rec = ByteBuffer.allocate(stride).order(ByteOrder.LITTLE_ENDIAN);
+        rec.position(PREFIX);
+        for (float f : vector) {
+            rec.putFloat(f);
+            sum += f;
+            squares += (double) f * f;
+        }
+        rec.putLong(0, metaAt).putDouble(8, sum).putDouble(16, squares);
+        rec.clear();
+        long at = header + (long) count * stride;
+        while (rec.hasRemaining()) {
+            channel.write(rec, at + rec.position());
+        }
+        return count++;
+    }
+
+    /**
+     * Force what was appended to disk.
+     *
+     * @throws IOException If that fails.
+     */
+    public void flush() throws IOException {
+        meta.force(false);
+        channel.force(false);
+    }
+
+    @Override
+    public void read(int id, float[] into) {
+        Segment seg = segment(id / perSegment, id + 1);
+        FloatBuffer floats = seg.floats;
+        for (int i = 0, at = seg.floatIndex(id); i < dim; i++) {
+            into[i] = floats.get(at + i);
+        }
+    }
+
+    /**
+     * Read a vector onto the heap.
+     *
+     * @param id The vector.
+     * @return A copy.
+     */
+    public float[] get(int id) {
+        float[] ret = new float[dim];
+        read(id, ret);
+        return ret;
+    }
+
+    /**
+     * Get the metadata of a vector.
+     *
+     * @param id The vector.
+     * @return What was appended with it, null if nothing.
+     * @throws IOException If the side file cannot be read.
+     */
+    public String metadata(int id) throws IOException {
+        Segment seg = segment(id / perSegment, id + 1);
+        long at = seg.bytes.getLong((id - seg.first) * stride);
+        if (at < 0) {
+            return null;
+        }
+        ByteBuffer len = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(len, at);
+        ByteBuffer text = ByteBuffer.allocate(len.getInt(0));
+        readFully(text, at + 4);
+        return new String(text.array(), StandardCharsets.UTF_8);
+    }
+
+    private void readFully(ByteBuffer bb, long at) throws IOException {
+        while (bb.hasRemaining()) {
+            if (meta.read(bb, at + bb.position()) < 0) {
+                throw new IOException("Metadata of " + file + " is truncated");
+            }
+        }
+    }
+
+    /**
+     * Find the vectors closest to some embeddings.
+     *
+     * @param query Embeddings of our model.
+     * @param k How many to return.
+     * @param metric How to compare.
+     * @return At most k hits, closest first, row is the id.
+     */
+    public List<SearchHit> search(Embeddings query, int k, Metric metric) {
+        if (!model.equals(query.request.model)) {
+            throw new RuntimeException("Not the same model");
+        }
+        return search(query.response.embedding, k, metric);
+    }
+
+    /**
+     * Find the vectors closest to a vector: an exact search like
+     * {@link SimilaritySearch}, one fork-join task per part of a segment,
+     * reading the mapping in place.
+     *
+     * @param query The vector.
+     * @param k How many to return.
+     * @param metric How to compare.
+     * @return At most k hits, closest first, row is the id.
+     */
+    public List<SearchHit> search(float[] query, int k, Metric metric) {
+        if (query.length != dim) {
+            throw new IllegalArgumentException("Query has " + query.length + " values, not " + dim);
+        }
+        int n = count;
+        if (k <= 0 || 0 == n) {
+            return new ArrayList<>();
+        }
+        k = Math.min(k, n);
+        double sum = 0;
+        double squares = 0;
+        for (float f : query) {
+            sum += f;
+            squares += (double) f * f;
+        }
+        final List<Scan> parts = new ArrayList<>();
+        int leaf = Math.max(SimilaritySearch.LEAF_ROWS, n / (pool.getParallelism() * 8));
+        for (int s = 0; s * perSegment < n; s++) {
+            Segment seg = segment(s, Math.min(n, (s + 1) * perSegment));
+            for (int from = seg.first; from < seg.first + seg.rows; from += leaf) {
+                parts.add(new Scan(seg, query, metric, sum, squares, k, from, Math.min(seg.first + seg.rows, from + leaf)));
+            }
+        }
+        final int topK = k;
+        return pool.invoke(new RecursiveTask<TopK>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected TopK compute() {
+                TopK top = new TopK(topK);
+                for (Scan part : invokeAll(parts)) {
+                    top.addAll(part.join());
+                }
+                return top;
+            }
+        }).toHits(metric);
+    }
+
+    /**
+     * Get a segment mapped far enough to hold vector need - 1, mapping or
+     * remapping it if the store grew.
+     */
+    private Segment segment(int s, int need) {
+        if (need > count) {
+            throw new IndexOutOfBoundsException("No vector " + (need - 1) + " in " + file);
+        }
+        synchronized (segments) {
+            while (segments.size() <= s) {
+                segments.add(null);
+            }
+            Segment seg = segments.get(s);
+            if (null == seg || seg.first + seg.rows < need) {
+                int first = s * perSegment;
+                int rows = Math.min(perSegment, count - first);
+                try {
+                    MappedByteBuffer mbb = channel.map(FileChannel.MapMode.READ_ONLY,
+                            header + (long) first * stride, (long) rows * stride);
+                    seg = new Segment(first, rows, mbb);
+                } catch (IOException ex) {
+                    throw new IllegalStateException("Cannot map " + file, ex);
+                }
+                segments.set(s, seg);
+            }
+            return seg;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (segments) {
+            segments.clear();
+        }
+        try {
+            metaRaf.close();
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VectorStore{" + file + ", model=" + model + ", dim=" + dim + ", size=" + count + '}';
+    }
+
+    /**
+     * A mapped run of whole records.
+     */
+    private final class Segment {
+
+        final int first;
+        final int rows;
+        final ByteBuffer bytes;
+        final FloatBuffer floats;
+
+        Segment(int first, int rows, MappedByteBuffer mbb) {
+            this.first = first;
+            this.rows = rows;
+            this.bytes = mbb.order(ByteOrder.LITTLE_ENDIAN);
+            this.floats = bytes.asFloatBuffer();
+        }
+
+        /**
+         * Where the values of a vector start in {@link #floats}.
+         */
+        int floatIndex(int id) {
+            return ((id - first) * stride + PREFIX) / 4;
+        }
+    }
+
+    /**
+     * Scores a run of vectors within one segment.
+     */
+    private final class Scan extends RecursiveTask<TopK> {
+
+        private static final long serialVersionUID = 1L;
+        private final Segment seg;
+        private final float[] q;
+        private final Metric metric;
+        private final double qSum;
+        private final double qSquares;
+        private final int k;
+        private final int from;
+        private final int to;
+
+        Scan(Segment seg, float[] q, Metric metric, double qSum, double qSquares, int k, int from, int to) {
+            this.seg = seg;
+            this.q = q;
+            this.metric = metric;
+            this.qSum = qSum;
+            this.qSquares = qSquares;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TopK compute() {
+            TopK top = new TopK(k);
+            ByteBuffer bytes = seg.bytes;
+            FloatBuffer floats = seg.floats;
+            double qNorm = Math.sqrt(qSquares);
+            for (int id = from; id < to; id++) {
+                int at = (id - seg.first) * stride;
+                int fi = (at + PREFIX) / 4;
+                double rank;
+                switch (metric) {
+                    case COSINE:
+                        double den = qNorm * Math.sqrt(bytes.getDouble(at + 16));
+                        rank = 0 == den ? Double.NaN : VectorMath.dot(q, 0, floats, fi, dim) / den;
+                        break;
+                    case L2:
+                        rank = -Math.sqrt(VectorMath.l2Squared(q, 0, floats, fi, dim));
+                        break;
+                    case L1:
+                        rank = -VectorMath.l1(q, 0, floats, fi, dim);
+                        break;
+                    default:
+                        rank = VectorMath.pearson(dim, qSum, bytes.getDouble(at + 8),
+                                VectorMath.dotDouble(q, 0, floats, fi, dim), qSquares, bytes.getDouble(at + 16));
+                        break;
+                }
+                if (!Double.isNaN(rank)) {
+                    top.offer(id, rank);
+                }
+            }
+            return top;
+        }
+    }
+}